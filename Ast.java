@@ -0,0 +1,216 @@
+/**
+ * Typed intermediate code for the nanoMorpho language.
+ *
+ * The Parser builds these nodes and the Compiler generates code from them.
+ * Every node is an immutable final class holding exactly the fields its
+ * CodeType needs, so no Object[] wrapping, boxing or casting through Object
+ * is required when walking the tree. Small expressions share the Node base
+ * class and carry their CodeType so the code generator can dispatch with a
+ * plain switch.
+ */
+public final class Ast {
+
+    private Ast(){}
+
+    // A whole program: the functions in source order
+    public static final class Program {
+        public final Function[] functions;
+
+        public Program(Function[] functions){
+            this.functions = functions;
+        }
+    }
+
+    // A function definition. Variables 0..numArgs-1 are the arguments,
+    // numArgs..numArgs+numVars-1 are the declared local variables. name is
+    // the symbol of the function's name.
+    public static final class Function {
+        public final int name;
+        public final int numArgs;
+        public final int numVars;
+        public final Expr[] body;
+
+        public Function(int name, int numArgs, int numVars, Expr[] body){
+            this.name = name;
+            this.numArgs = numArgs;
+            this.numVars = numVars;
+            this.body = body;
+        }
+    }
+
+    // An expression: operands[0] operators[0] operands[1] ... evaluated left
+    // to right. operators.length is always operands.length-1.
+    public static final class Expr {
+        private static final String[] NO_OPERATORS = new String[0];
+
+        public final Node[] operands;
+        public final String[] operators;
+
+        public Expr(Node[] operands, String[] operators){
+            this.operands = operands;
+            this.operators = operators;
+        }
+
+        public Expr(Node operand){
+            this(new Node[]{operand}, NO_OPERATORS);
+        }
+    }
+
+    // Base class of all small expressions
+    public static abstract class Node {
+        public final Compiler.CodeType type;
+
+        Node(Compiler.CodeType type){
+            this.type = type;
+        }
+    }
+
+    // <NAME>
+    public static final class Name extends Node {
+        public final int var;
+
+        public Name(int var){
+            super(Compiler.CodeType.NAME);
+            this.var = var;
+        }
+    }
+
+    // <NAME> = <expr>
+    public static final class Assign extends Node {
+        public final int var;
+        public final Expr value;
+
+        public Assign(int var, Expr value){
+            super(Compiler.CodeType.ASSIGN);
+            this.var = var;
+            this.value = value;
+        }
+    }
+
+    // <NAME>(<expr>, ...), name is the symbol of <NAME>
+    public static final class Call extends Node {
+        public final int name;
+        public final Expr[] args;
+
+        public Call(int name, Expr[] args){
+            super(Compiler.CodeType.CALL);
+            this.name = name;
+            this.args = args;
+        }
+    }
+
+    // return <expr>
+    public static final class Return extends Node {
+        public final Expr value;
+
+        public Return(Expr value){
+            super(Compiler.CodeType.RETURN);
+            this.value = value;
+        }
+    }
+
+    // <OPERATOR> <smallExpr>
+    public static final class Unary extends Node {
+        public final String operator;
+        public final Node operand;
+
+        public Unary(String operator, Node operand){
+            super(Compiler.CodeType.UNARY);
+            this.operator = operator;
+            this.operand = operand;
+        }
+    }
+
+    // <LITERAL>, kept in its source form
+    public static final class Literal extends Node {
+        public final String value;
+
+        public Literal(String value){
+            super(Compiler.CodeType.LITERAL);
+            this.value = value;
+        }
+    }
+
+    // if(conds[0]) bodies[0] elsif(conds[1]) bodies[1] ... else elseBody
+    // elseBody is null when there is no else part.
+    public static final class If extends Node {
+        public final Expr[] conds;
+        public final Expr[][] bodies;
+        public final Expr[] elseBody;
+
+        public If(Expr[] conds, Expr[][] bodies, Expr[] elseBody){
+            super(Compiler.CodeType.IF);
+            this.conds = conds;
+            this.bodies = bodies;
+            this.elseBody = elseBody;
+        }
+    }
+
+    // while(cond) body
+    public static final class While extends Node {
+        public final Expr cond;
+        public final Expr[] body;
+
+        public While(Expr cond, Expr[] body){
+            super(Compiler.CodeType.WHILE);
+            this.cond = cond;
+            this.body = body;
+        }
+    }
+
+    // (<expr>)
+    public static final class Priority extends Node {
+        public final Expr inner;
+
+        public Priority(Expr inner){
+            super(Compiler.CodeType.PRIORITY);
+            this.inner = inner;
+        }
+    }
+
+    // NODE COUNTING:
+
+    // Returns the number of nodes in the intermediate code of f, counting
+    // the function itself, its expressions and their small expressions
+    public static long countNodes(Function f){
+        return 1+countNodes(f.body);
+    }
+
+    private static long countNodes(Expr[] body){
+        long nodes = 0;
+        for(Expr e : body) nodes += countNodes(e);
+        return nodes;
+    }
+
+    private static long countNodes(Expr e){
+        long nodes = 1;
+        for(Node node : e.operands) nodes += countNodes(node);
+        return nodes;
+    }
+
+    private static long countNodes(Node node){
+        switch(node.type){
+            case ASSIGN:
+                return 1+countNodes(((Assign)node).value);
+            case CALL:
+                return 1+countNodes(((Call)node).args);
+            case RETURN:
+                return 1+countNodes(((Return)node).value);
+            case UNARY:
+                return 1+countNodes(((Unary)node).operand);
+            case IF: {
+                If ifNode = (If)node;
+                long nodes = 1+countNodes(ifNode.conds);
+                for(Expr[] body : ifNode.bodies) nodes += countNodes(body);
+                if(ifNode.elseBody != null) nodes += countNodes(ifNode.elseBody);
+                return nodes;
+            }
+            case WHILE:
+                return 1+countNodes(((While)node).cond)+countNodes(((While)node).body);
+            case PRIORITY:
+                return 1+countNodes(((Priority)node).inner);
+            default:
+                return 1;
+        }
+    }
+}
@@ -0,0 +1,327 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+
+/**
+ * Throughput benchmarks for the Lexer, the Parser and the code generator,
+ * each measured on its own, and of the compiler end to end.
+ *
+ * Usage: java Benchmark [options] [file...]
+ *   --shape wide|deep|long  benchmark a synthetic program of that shape, may
+ *                           be repeated (default: all three unless files are given)
+ *   --size N                number of functions in synthetic programs (default 2000)
+ *   --depth N               nesting depth of the deep shape (default 32)
+ *   --length N              operands per expression of the long shape (default 256)
+ *   --warmup N              warmup iterations (default 10)
+ *   --iterations N          measured iterations (default 20)
+ *   -O                      generate and compile with optimization
+ *   --scaling               check memory scaling instead of measuring throughput
+ *
+ * The shapes stress different parts of the compiler: wide has many small
+ * functions, deep has deeply nested if and while statements and long has
+ * long expressions. Each program is read into memory once, lexed into the
+ * tokens of each function and parsed once, and every phase is run on it
+ * repeatedly: lexing (tokens/s) from memory and from the file with a
+ * MappedLexer, parsing the tokens of each function as a compilation does
+ * (intermediate code nodes/s), generating the code of each parsed function
+ * with the peephole optimizer and instruction selection of a compilation
+ * (instructions/s) and compiling the file to a .masm file (lines/s). With
+ * -O the functions are optimized once before code is generated for them.
+ * After the warmup the mean time per iteration, its standard deviation, the
+ * throughput and the bytes allocated per iteration (in all threads, measured
+ * with the HotSpot ThreadMXBean) are reported. Synthetic programs are made
+ * by Generator.
+ *
+ * With --scaling, programs of each shape with size, 2*size, 4*size and
+ * 8*size functions are compiled from a file once each and the peak heap use
+ * during compilation is reported. The exit status is 1 if the peak heap of a
+ * larger program is more than twice what linear growth from the smallest
+ * would give.
+ */
+public class Benchmark {
+
+    private static final com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static int warmup = 10;
+    private static int iterations = 20;
+    private static boolean optimize = false;
+
+    // A phase of the compiler to measure. run() does the work once and
+    // returns the number of units it processed.
+    private static abstract class Phase {
+        final String name;
+        final String unit;
+
+        Phase(String name, String unit){
+            this.name = name;
+            this.unit = unit;
+        }
+
+        abstract long run() throws Exception;
+    }
+
+    // PHASES:
+
+    private static long lex(TokenSource lexer) throws IOException{
+        long tokens = 0;
+        while(lexer.yylex() != Parser.EOF) tokens++;
+        return tokens;
+    }
+
+    // Returns the tokens of each function of source, lexed once so they can
+    // be parsed again and again
+    private static ArrayList<TokenBuffer> scan(String source){
+        TokenSource lexer = new Lexer(new StringReader(source));
+        ArrayList<TokenBuffer> functions = new ArrayList<>();
+        TokenBuffer tokens;
+        while(!(tokens = TokenBuffer.scanFunction(lexer)).isEmpty()) functions.add(tokens);
+        return functions;
+    }
+
+    // Returns the intermediate code of each function, each parsed by a
+    // Parser of its own as in a compilation
+    private static Ast.Function[] parse(ArrayList<TokenBuffer> functions){
+        Ast.Function[] result = new Ast.Function[functions.size()];
+        for(int i=0; i<result.length; i++) result[i] = new Parser(functions.get(i), null).nextFunction();
+        return result;
+    }
+
+    // Returns the number of instructions generated for functions
+    private static long generate(Ast.Function[] functions){
+        Compiler compiler = new Compiler(false, optimize);
+        long instructions = 0;
+        for(Ast.Function f : functions) instructions += compiler.generateCode(f).code.size();
+        return instructions;
+    }
+
+    // SYNTHETIC PROGRAMS:
+
+    // Before: size, depth and length are positive
+    // After:  returns a Generator for programs of size functions of the given shape
+    private static Generator shape(String shape, int size, int depth, int length){
+        Generator generator = new Generator(size);
+        generator.functions = size;
+        switch(shape){
+            case "wide":
+                generator.statements = 6;
+                generator.depth = 2;
+                generator.length = 4;
+                break;
+            case "deep":
+                // A single chain of nested statements in each function
+                generator.statements = 1;
+                generator.depth = depth;
+                generator.compound = 1;
+                generator.body = 1;
+                generator.branches = 1;
+                generator.length = 3;
+                break;
+            case "long":
+                generator.statements = 2;
+                generator.depth = 0;
+                generator.length = length;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown shape "+shape);
+        }
+        return generator;
+    }
+
+    private static String synthesize(String shape, int size, int depth, int length) throws IOException{
+        StringWriter out = new StringWriter();
+        shape(shape, size, depth, length).generate(out);
+        return out.toString();
+    }
+
+    // MEASUREMENT:
+
+    private static long allocatedBytes(){
+        long total = 0;
+        for(long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())){
+            if(bytes > 0) total += bytes;
+        }
+        return total;
+    }
+
+    private static void measure(String program, Phase phase) throws Exception{
+        for(int i=0; i<warmup; i++) phase.run();
+
+        double[] ms = new double[iterations];
+        long units = 0;
+        long bytesBefore = allocatedBytes();
+        for(int i=0; i<iterations; i++){
+            long timeBefore = System.nanoTime();
+            units = phase.run();
+            ms[i] = (System.nanoTime()-timeBefore)/1e6;
+        }
+        long bytes = (allocatedBytes()-bytesBefore)/iterations;
+
+        double mean = 0;
+        for(double m : ms) mean += m;
+        mean /= iterations;
+        double variance = 0;
+        for(double m : ms) variance += (m-mean)*(m-mean);
+        double deviation = iterations > 1 ? Math.sqrt(variance/(iterations-1)) : 0;
+
+        System.out.println(String.format("%-18s %-9s %10.3f %8.3f %14.0f %-13s %12d",
+            program, phase.name, mean, deviation, units/(mean/1e3), phase.unit+"/s", bytes));
+    }
+
+    // Before: source is the text of a nanoMorpho program
+    // After:  every phase has been measured on it and reported
+    private static void benchmark(String program, String source) throws Exception{
+        int lines = 1;
+        for(int i=0; i<source.length(); i++){
+            if(source.charAt(i) == '\n') lines++;
+        }
+        final int sourceLines = lines;
+        final ArrayList<TokenBuffer> functions = scan(source);
+        final Ast.Function[] parsed = parse(functions);
+        long nodes = 0;
+        for(Ast.Function f : parsed) nodes += Ast.countNodes(f);
+        final long parsedNodes = nodes;
+        if(optimize){
+            Optimizer optimizer = new Optimizer();
+            for(int i=0; i<parsed.length; i++) parsed[i] = optimizer.optimize(parsed[i]);
+        }
+        Path dir = Files.createTempDirectory("benchmark");
+        final Path file = dir.resolve("program.nm");
+        Files.write(file, source.getBytes(Charset.forName("UTF-8")));
+
+        measure(program, new Phase("lex", "tokens"){
+            long run() throws Exception{ return lex(new Lexer(new StringReader(source))); }
+        });
+        measure(program, new Phase("lex-mmap", "tokens"){
+            long run() throws Exception{ return lex(MappedLexer.open(file)); }
+        });
+        measure(program, new Phase("parse", "nodes"){
+            long run(){ parse(functions); return parsedNodes; }
+        });
+        measure(program, new Phase("generate", "instrs"){
+            long run(){ return generate(parsed); }
+        });
+        measure(program, new Phase("compile", "lines"){
+            long run() throws Exception{
+                new Compiler(false, optimize).compile(file, dir);
+                return sourceLines;
+            }
+        });
+
+        Files.deleteIfExists(dir.resolve("program.masm"));
+        Files.delete(file);
+        Files.delete(dir);
+    }
+
+    // MEMORY SCALING:
+
+    private static final double SCALING_TOLERANCE = 2;
+
+    // Returns the heap in use, or the peak use since the peaks were reset
+    private static long heapUsed(boolean peak){
+        long total = 0;
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+            if(pool.getType() == MemoryType.HEAP) total += peak ? pool.getPeakUsage().getUsed() : pool.getUsage().getUsed();
+        }
+        return total;
+    }
+
+    // Before: file is the path of a nanoMorpho program
+    // After:  returns the peak heap use while compiling it, above what was
+    //         in use before
+    private static long compileHeap(Path file) throws IOException{
+        System.gc();
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) pool.resetPeakUsage();
+        long before = heapUsed(false);
+        new Compiler(false, optimize).compile(file, file.getParent());
+        return heapUsed(true)-before;
+    }
+
+    // After:  programs of shape with size, 2*size, 4*size and 8*size
+    //         functions have been compiled and their peak heap use reported,
+    //         returns false if it grew much faster than linearly
+    private static boolean checkScaling(String shape, int size, int depth, int length) throws IOException{
+        Path dir = Files.createTempDirectory("benchmark");
+        Path file = dir.resolve("program.nm");
+        boolean linear = true;
+        long baseHeap = 0;
+        for(int scale=1; scale<=8; scale*=2){
+            try(Writer out = Files.newBufferedWriter(file, Charset.forName("UTF-8"))){
+                shape(shape, size*scale, depth, length).generate(out);
+            }
+            long sourceBytes = Files.size(file);
+            compileHeap(file);  // warm up
+            long heap = compileHeap(file);
+            if(scale == 1) baseHeap = heap;
+            boolean ok = heap <= SCALING_TOLERANCE*scale*baseHeap;
+            linear &= ok;
+            System.out.println(String.format("%-18s %12d %12d %8.2f %s",
+                shape+"("+size*scale+")", sourceBytes, heap, (double)heap/baseHeap, ok ? "ok" : "TOO MUCH"));
+        }
+        Files.deleteIfExists(dir.resolve("program.masm"));
+        Files.delete(file);
+        Files.delete(dir);
+        return linear;
+    }
+
+    public static void main(String[] args) throws Exception{
+        ArrayList<String> shapes = new ArrayList<>();
+        ArrayList<String> files = new ArrayList<>();
+        int size = 2000, depth = 32, length = 256;
+        boolean scaling = false;
+        try{
+            for(int i=0; i<args.length; i++){
+                switch(args[i]){
+                    case "--shape":      shapes.add(args[++i]); break;
+                    case "--size":       size = Integer.parseInt(args[++i]); break;
+                    case "--depth":      depth = Integer.parseInt(args[++i]); break;
+                    case "--length":     length = Integer.parseInt(args[++i]); break;
+                    case "--warmup":     warmup = Integer.parseInt(args[++i]); break;
+                    case "--iterations": iterations = Integer.parseInt(args[++i]); break;
+                    case "-O":           optimize = true; break;
+                    case "--scaling":    scaling = true; break;
+                    default:             files.add(args[i]);
+                }
+            }
+            if(size < 1 || depth < 1 || length < 1 || warmup < 0 || iterations < 1) throw new NumberFormatException();
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e){
+            System.err.println("Usage: java Benchmark [--shape wide|deep|long] [--size N] [--depth N] [--length N]");
+            System.err.println("                      [--warmup N] [--iterations N] [-O] [--scaling] [file...]");
+            System.exit(1);
+        }
+        if(shapes.isEmpty() && files.isEmpty()){
+            shapes.add("wide");
+            shapes.add("deep");
+            shapes.add("long");
+        }
+
+        if(scaling){
+            if(shapes.isEmpty()){
+                shapes.add("wide");
+                shapes.add("deep");
+                shapes.add("long");
+            }
+            System.out.println(String.format("%-18s %12s %12s %8s", "program", "source bytes", "peak heap", "ratio"));
+            boolean linear = true;
+            for(String shape : shapes) linear &= checkScaling(shape, size, depth, length);
+            if(!linear) System.exit(1);
+            return;
+        }
+
+        System.out.println(String.format("%-18s %-9s %10s %8s %28s %12s",
+            "program", "phase", "ms/op", "stddev", "throughput", "bytes/op"));
+        for(String shape : shapes){
+            benchmark(shape+"("+size+")", synthesize(shape, size, depth, length));
+        }
+        for(String file : files){
+            String source = new String(Files.readAllBytes(Paths.get(file)), Charset.forName("UTF-8"));
+            benchmark(Paths.get(file).getFileName().toString(), source);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+
+/**
+ * Thin client for the CompileServer.
+ *
+ * Usage: java CompileClient socket [compiler arguments]
+ *
+ * Sends the arguments and the working directory to the compile server
+ * listening on socket, prints the --stats lines it answers with to standard
+ * output and the errors to standard error and exits with the exit status of
+ * the compilation. Only this class is loaded, so it starts much faster than
+ * the compiler itself.
+ */
+public class CompileClient {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static void main(String[] args) throws IOException{
+        if(args.length == 0){
+            System.err.println("Usage: java CompileClient socket [compiler arguments]");
+            System.exit(1);
+        }
+        SocketChannel server;
+        try{
+            server = SocketChannel.open(StandardProtocolFamily.UNIX);
+            server.connect(UnixDomainSocketAddress.of(Paths.get(args[0])));
+        } catch (IOException e){
+            System.err.println("Could not connect to the compile server at "+args[0]+": "+e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        Writer out = new BufferedWriter(Channels.newWriter(server, UTF8.newEncoder(), -1));
+        out.write(System.getProperty("user.dir"));
+        out.write('\n');
+        for(int i=1; i<args.length; i++){
+            if(args[i].isEmpty() || args[i].indexOf('\n') >= 0){
+                System.err.println("Invalid argument for the compile server: '"+args[i]+"'");
+                System.exit(1);
+            }
+            out.write(args[i]);
+            out.write('\n');
+        }
+        out.write('\n');
+        out.flush();
+
+        BufferedReader in = new BufferedReader(Channels.newReader(server, UTF8.newDecoder(), -1));
+        String line;
+        while((line = in.readLine()) != null){
+            if(line.startsWith("exit ")){
+                System.exit(Integer.parseInt(line.substring(5)));
+            }
+            // --stats lines are JSON objects, no error message starts with '{'
+            if(line.startsWith("{")) System.out.println(line);
+            else System.err.println(line);
+        }
+        System.err.println("The compile server closed the connection.");
+        System.exit(1);
+    }
+}
@@ -0,0 +1,30 @@
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Errors in the nanoMorpho program being compiled. The message says what
+ * is wrong and where, one error per line, and is all the user needs to see.
+ */
+public class CompileError extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> messages;
+
+    public CompileError(String message){
+        super(message);
+        messages = Collections.singletonList(message);
+    }
+
+    // Before: messages is not empty
+    // After:  this is an error for all of messages, in order
+    public CompileError(List<String> messages){
+        super(String.join(System.lineSeparator(), messages));
+        this.messages = Collections.unmodifiableList(messages);
+    }
+
+    // The message of each error
+    public List<String> messages(){
+        return messages;
+    }
+}
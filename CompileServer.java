@@ -0,0 +1,168 @@
+import java.io.*;
+import java.net.ConnectException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A long running compile server, so a build pays for starting the JVM and
+ * warming up the Lexer tables and the compiler code once instead of once
+ * per file.
+ *
+ * Started with 'java Compiler --server socket' it listens on the Unix domain
+ * socket at the given path and handles each connection as one request. A
+ * socket left at the path by a server that was killed is replaced, but the
+ * server refuses to start if anything else is there or another server is
+ * listening on it.
+ *
+ * A request is
+ *
+ *   the working directory of the client, on one line
+ *   one line for each command line argument to the Compiler
+ *   an empty line
+ *
+ * The arguments are compiled as if 'java Compiler' had been run with them in
+ * that directory. The answer is the output of the compilation, --stats lines
+ * and error messages, one per line, followed by the line 'exit N' where N is
+ * its exit status. CompileClient sends such requests. Requests are handled
+ * concurrently. Once the Symbols table holds more than MAX_SYMBOLS symbols,
+ * the next request waits for those in progress to finish and clears it.
+ */
+public class CompileServer {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // The file type bits of a unix:mode attribute, and their value for a socket
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFSOCK = 0140000;
+
+    // The number of symbols past which the table is cleared between requests
+    private static final int MAX_SYMBOLS = 1 << 18;
+
+    private final Path socket;
+    // Held for reading by each compilation, and for writing to clear the
+    // symbols when no compilation is using them
+    private final ReadWriteLock compiling = new ReentrantReadWriteLock();
+    private final ExecutorService handlers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r);
+        t.setDaemon(true);
+        return t;
+    });
+
+    public CompileServer(Path socket){
+        this.socket = socket.toAbsolutePath();
+    }
+
+    // After: requests on the socket are being served, until the JVM is
+    //        stopped. Throws an IOException, without touching the path, if
+    //        something other than a socket is there or a server is already
+    //        listening on it.
+    public void serve() throws IOException{
+        removeStaleSocket();
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socket));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try{
+                Files.deleteIfExists(socket);
+            } catch (IOException e){
+                // Nothing more can be done while shutting down
+            }
+        }));
+        System.err.println("Compile server listening on "+socket);
+        while(true){
+            SocketChannel client = server.accept();
+            handlers.execute(() -> handle(client));
+        }
+    }
+
+    // After: a socket file left behind by a server that was killed, which
+    //        would block bind, has been removed
+    private void removeStaleSocket() throws IOException{
+        if(!Files.exists(socket, LinkOption.NOFOLLOW_LINKS)) return;
+        int mode = (Integer)Files.getAttribute(socket, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+        if((mode & S_IFMT) != S_IFSOCK){
+            throw new IOException(socket+" exists and is not a socket");
+        }
+        try(SocketChannel other = SocketChannel.open(StandardProtocolFamily.UNIX)){
+            other.connect(UnixDomainSocketAddress.of(socket));
+            throw new IOException("A compile server is already listening on "+socket);
+        } catch (ConnectException e){
+            // No one is listening, the socket is stale
+        }
+        Files.delete(socket);
+    }
+
+    // After: the symbol table has been cleared if it still holds more than
+    //        MAX_SYMBOLS symbols, once no compilation was in progress
+    private void clearSymbols(){
+        compiling.writeLock().lock();
+        try{
+            if(Symbols.size() > MAX_SYMBOLS) Symbols.clear();
+        } finally {
+            compiling.writeLock().unlock();
+        }
+    }
+
+    // Before: client is a newly accepted connection
+    // After:  its request has been answered and the connection closed
+    private void handle(SocketChannel client){
+        try(SocketChannel c = client){
+            BufferedReader in = new BufferedReader(Channels.newReader(c, UTF8.newDecoder(), -1));
+            PrintStream out = new PrintStream(new BufferedOutputStream(Channels.newOutputStream(c)), false, UTF8);
+            String dir = in.readLine();
+            ArrayList<String> args = new ArrayList<>();
+            String line;
+            while((line = in.readLine()) != null && !line.isEmpty()) args.add(line);
+            if(dir == null || line == null) return; // The client gave up
+
+            int status;
+            Throwable fatal = null;
+            if(args.contains("-v") || args.contains("-V")){
+                // The trace would go to the console of the server
+                out.println("The compile server does not support '-v'.");
+                status = 1;
+            } else {
+                if(Symbols.size() > MAX_SYMBOLS) clearSymbols();
+                compiling.readLock().lock();
+                try{
+                    status = Compiler.run(args.toArray(new String[0]), Paths.get(dir), out, out);
+                } catch (Throwable e){
+                    // The client is always answered. A program nested too
+                    // deeply or too large for the heap only fails its own
+                    // request, the server goes on after other errors of
+                    // the JVM only to answer this one.
+                    out.println("Compilation failed: "+e);
+                    status = 1;
+                    if(!recoverable(e)) fatal = e;
+                } finally {
+                    compiling.readLock().unlock();
+                }
+            }
+            out.println("exit "+status);
+            out.flush();
+            if(fatal != null){
+                System.err.println("Compile server stopping: "+fatal);
+                System.exit(1);
+            }
+        } catch (IOException e){
+            // The client went away, there is no one to tell
+        }
+    }
+
+    // Returns true if the server can go on serving requests after e was
+    // thrown compiling one
+    private static boolean recoverable(Throwable e){
+        return !(e instanceof VirtualMachineError) || e instanceof StackOverflowError || e instanceof OutOfMemoryError;
+    }
+}
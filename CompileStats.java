@@ -0,0 +1,119 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Time, allocation and size statistics of one compilation, collected with
+ * --stats and written as a line of JSON.
+ *
+ * The work of each phase is measured by a Timer in the thread doing it, with
+ * the wall clock and the CPU time and allocation counters of the HotSpot
+ * ThreadMXBean, and added up over all functions and threads. Functions are
+ * generated in parallel, so the wall times of the phases can add up to more
+ * than the wall time of the compilation.
+ */
+public final class CompileStats {
+
+    public static enum Phase {
+        LEX("lex"), PARSE("parse"), OPTIMIZE("optimize"), GENERATE("generate"),
+        PEEPHOLE("peephole"), SELECT("select"), EMIT("emit");
+
+        // The name of the phase in the JSON output
+        public final String name;
+
+        Phase(String name){
+            this.name = name;
+        }
+    }
+
+    private static final com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final LongAdder[] wall = adders(Phase.values().length);
+    private final LongAdder[] cpu = adders(Phase.values().length);
+    private final LongAdder[] bytes = adders(Phase.values().length);
+
+    public final LongAdder tokens = new LongAdder();
+    public final LongAdder nodes = new LongAdder();
+    public final LongAdder functions = new LongAdder();
+    public final LongAdder cachedFunctions = new LongAdder();
+    public final LongAdder labels = new LongAdder();
+    public final LongAdder instructions = new LongAdder();
+
+    private final long startWall = System.nanoTime();
+
+    private static LongAdder[] adders(int n){
+        LongAdder[] result = new LongAdder[n];
+        for(int i=0; i<n; i++) result[i] = new LongAdder();
+        return result;
+    }
+
+    // Measures the phases done by one thread. A Timer must only be used by
+    // the thread that created it.
+    public final class Timer {
+        private final long thread = Thread.currentThread().getId();
+        private long wallStart, cpuStart, bytesStart;
+
+        public void start(){
+            wallStart = System.nanoTime();
+            cpuStart = threads.getCurrentThreadCpuTime();
+            bytesStart = threads.getThreadAllocatedBytes(thread);
+        }
+
+        // After: the work since start() has been added to phase
+        public void stop(Phase phase){
+            long now = System.nanoTime();
+            cpu[phase.ordinal()].add(threads.getCurrentThreadCpuTime()-cpuStart);
+            bytes[phase.ordinal()].add(threads.getThreadAllocatedBytes(thread)-bytesStart);
+            wall[phase.ordinal()].add(now-wallStart);
+        }
+    }
+
+    // Returns a Timer for the current thread
+    public Timer timer(){
+        return new Timer();
+    }
+
+    // After: the statistics of the compilation of file, which has just
+    //        finished, have been written to out as one line of JSON
+    public void write(PrintStream out, String file){
+        long totalWall = System.nanoTime()-startWall;
+        long totalCpu = 0, totalBytes = 0;
+        StringBuilder phases = new StringBuilder();
+        for(Phase p : Phase.values()){
+            int i = p.ordinal();
+            totalCpu += cpu[i].sum();
+            totalBytes += bytes[i].sum();
+            if(i > 0) phases.append(',');
+            phases.append('"').append(p.name).append("\":{\"wall_ns\":").append(wall[i].sum())
+                  .append(",\"cpu_ns\":").append(cpu[i].sum())
+                  .append(",\"allocated_bytes\":").append(bytes[i].sum()).append('}');
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"file\":");
+        quote(sb, file);
+        sb.append(",\"wall_ns\":").append(totalWall)
+          .append(",\"cpu_ns\":").append(totalCpu)
+          .append(",\"allocated_bytes\":").append(totalBytes)
+          .append(",\"phases\":{").append(phases).append('}')
+          .append(",\"counts\":{\"tokens\":").append(tokens.sum())
+          .append(",\"nodes\":").append(nodes.sum())
+          .append(",\"functions\":").append(functions.sum())
+          .append(",\"cached_functions\":").append(cachedFunctions.sum())
+          .append(",\"labels\":").append(labels.sum())
+          .append(",\"instructions\":").append(instructions.sum())
+          .append("}}");
+        out.println(sb);
+    }
+
+    private static void quote(StringBuilder sb, String s){
+        sb.append('"');
+        for(int i=0; i<s.length(); i++){
+            char c = s.charAt(i);
+            if(c == '"' || c == '\\') sb.append('\\').append(c);
+            else if(c < 0x20) sb.append(String.format("\\u%04x", (int)c));
+            else sb.append(c);
+        }
+        sb.append('"');
+    }
+}
@@ -1,177 +1,521 @@
 import java.io.*;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Paths;
 import java.nio.file.Path;
-import java.nio.file.Files;
 
 public class Compiler{
     public static enum CodeType{
         NAME, ASSIGN, CALL, RETURN, UNARY, LITERAL, IF, WHILE, PRIORITY
     };
-    private static boolean verbose = false;
-    private static ArrayList<String> lines = new ArrayList<>();
-    private static int nextLab = 1;
+    // A Compiler compiles one file at a time, separate files can be
+    // compiled concurrently by separate Compilers. The functions of a file
+    // are generated in parallel, each by a Compiler of its own.
+    private final boolean optimize;
+    // The -v trace, null if not tracing
+    private final Trace trace;
+    private final Optimizer optimizer = new Optimizer();
+    // The peephole optimizer and its counts. Each function generated on
+    // another thread has one of its own, sharing the rules of the unit's.
+    private final Peephole peephole;
+    // The cache of generated functions, null if there is none
+    private final FunctionCache cache;
+    // Where to write --stats, null if not collecting them
+    private final PrintStream statsOut;
+    // Whether to write a morpho executable instead of morpho assembly
+    private final boolean mexe;
+    // The statistics of the file being compiled and the timer of this
+    // Compiler's thread, null if not collecting them
+    private CompileStats stats;
+    private CompileStats.Timer timer;
+    // The task generating the function of a Compiler made by submit
+    private ForkJoinTask<FunctionCode> task;
+    // The code of the function being generated and its next label number,
+    // labels are numbered from 1 in each function
+    private ArrayList<Instruction> code;
+    private int nextLab;
+    // The function being generated and the label of its body, which self
+    // tail calls jump back to (0 if it has none)
+    private Ast.Function currentFunction;
+    private int entryLab;
+
+    // Source files of at least this many bytes are read by a MappedLexer
+    private static final long MAPPED_SIZE = 1 << 20;
+
+    public Compiler(boolean verbose, boolean optimize){
+        this(verbose ? System.out : null, optimize, null, null);
+    }
+
+    // Before: traceOut is where to write the -v trace, null if not tracing
+    public Compiler(PrintStream traceOut, boolean optimize, FunctionCache cache, PrintStream statsOut){
+        this(traceOut, optimize, cache, statsOut, false);
+    }
+
+    // Before: mexe is true to write <name>.mexe instead of <name>.masm
+    public Compiler(PrintStream traceOut, boolean optimize, FunctionCache cache, PrintStream statsOut, boolean mexe){
+        this.trace = traceOut == null ? null : new Trace(traceOut);
+        this.optimize = optimize;
+        this.cache = cache;
+        this.statsOut = statsOut;
+        this.mexe = mexe;
+        this.peephole = new Peephole();
+    }
+
+    // A Compiler for generating a single function of the file unit is
+    // compiling, on another thread
+    private Compiler(Compiler unit){
+        this.trace = null;
+        this.optimize = unit.optimize;
+        this.cache = unit.cache;
+        this.statsOut = null;
+        this.mexe = false;
+        this.peephole = new Peephole(unit.peephole);
+        stats = unit.stats;
+    }
+
+    // Before: tokens are the tokens of a function of the file this Compiler
+    //         is compiling
+    // After:  returns the task compiling the function in pool, by a
+    //         Compiler of its own
+    private Compiler submit(ForkJoinPool pool, TokenBuffer tokens){
+        Compiler worker = new Compiler(this);
+        worker.task = pool.submit(() -> {
+            if(worker.stats != null) worker.timer = worker.stats.timer();
+            return worker.compileFunction(tokens);
+        });
+        return worker;
+    }
+
+    private void startTimer(){
+        if(timer != null) timer.start();
+    }
+
+    private void stopTimer(CompileStats.Phase phase){
+        if(timer != null) timer.stop(phase);
+    }
     
-    private static int newLab()
+    private int newLab()
     {
         return nextLab++;
     }
     
-    private static void emit(String s){
-        lines.add(s);
-        if(verbose) System.out.println(s);
+    private void emit(Instruction i){
+        code.add(i);
     }
     
     // CODE GENERATING FUNCTIONS
     
-    // Before: inter is an object array containing elements which meet
-    //         the before criteria of the generateFunction method
-    // After:  A morpho assembly code version of the program represented
-    //         by inter is in lines, with the name <name>.mexe
-    private static void generateProgram(String name, Object[] inter){
-        emit("\""+name+".mexe\" = main in");
-        emit("!{{");
-        for(int i=0; i<inter.length; i++){
-            generateFunction((Object[])inter[i]);
-        }
-        emit("}}*BASIS;");
-    }
-
-
-    // Before: inter is an object array with the following internal structure
-    //{String fname, Integer num_args, Integer num_vars, Object[]... exprInterCode}
-    // After:  The morpho assembly code for the function fname has been written to
-    //         the class variable lines.
-    private static void generateFunction(Object[] inter){
-        String fName = (String) inter[0];
-        int numArgs = (int) inter[1];
-        int numVars = (int) inter[2];
-        emit("#\""+fName+"[f"+numArgs+"]\" =");
-        emit("[");
+    // Before: f is the intermediate code of a function, variables 0..numArgs-1
+    //         are its arguments and numArgs..numArgs+numVars-1 its locals
+    // After:  returns the morpho assembly code for the body of the function
+    private FunctionCode generateFunction(Ast.Function f){
+        code = new ArrayList<>();
+        nextLab = 1;
         // Assign memory for the variables, leave the last on in accumulator
-        if(numVars>0){
-            emit("(MakeVal null)");
-            for(int i=1; i<numVars; i++){
-                emit("(MakeValP null)");
+        if(f.numVars>0){
+            emit(Instruction.makeVal("null"));
+            for(int i=1; i<f.numVars; i++){
+                emit(Instruction.makeValP("null"));
             }
-            emit("(Push)");
+            emit(Instruction.PUSH);
+        }
+        currentFunction = f;
+        entryLab = 0;
+        if(hasSelfTailCall(f.body)){
+            entryLab = newLab();
+            emit(Instruction.label(entryLab));
         }
-        for(int i=3; i<inter.length; i++){
-            generateExpression((Object[])inter[i]);
+        // The value of the last statement is returned
+        for(int i=0; i<f.body.length; i++){
+            generateStatement(f.body[i], i == f.body.length-1);
         }
         // Make sure every function returns
-        if(!lines.get(lines.size()-1).equals("(Return)")) emit("(Return)");
-        emit("];");
+        if(code.isEmpty() || code.get(code.size()-1).op != Instruction.Op.RETURN) emit(Instruction.RETURN);
+        FunctionCode result = new FunctionCode(Symbols.name(f.name), f.numArgs, code, nextLab-1);
+        code = null;
+        return result;
+    }
+
+    // Before: f is the intermediate code of a function
+    // After:  returns the morpho assembly code for f, optimized if -O was
+    //         given, using the fused operations of the VM where it can
+    private FunctionCode compileFunction(Ast.Function f){
+        if(optimize){
+            startTimer();
+            f = optimizer.optimize(f);
+            stopTimer(CompileStats.Phase.OPTIMIZE);
+        }
+        return generateCode(f);
+    }
+
+    // Before: f is the intermediate code of a function, already optimized
+    //         if -O was given
+    // After:  returns the morpho assembly code for f, cleaned up by the
+    //         peephole optimizer if -O was given, using the fused operations
+    //         of the VM where it can. Benchmark times code generation alone
+    //         through this.
+    FunctionCode generateCode(Ast.Function f){
+        startTimer();
+        FunctionCode result = generateFunction(f);
+        stopTimer(CompileStats.Phase.GENERATE);
+        if(optimize){
+            startTimer();
+            peephole.optimize(result.code);
+            stopTimer(CompileStats.Phase.PEEPHOLE);
+        }
+        startTimer();
+        Selector.select(result.code);
+        stopTimer(CompileStats.Phase.SELECT);
+        return result;
+    }
+
+    // Before: tokens are the tokens of a function
+    // After:  returns the morpho assembly code for the function, taken from
+    //         the cache if it has been compiled with the same flags before
+    private FunctionCode compileFunction(TokenBuffer tokens){
+        String key = null;
+        FunctionCode result = null;
+        if(cache != null){
+            key = cache.key(tokens, optimize);
+            result = cache.get(key);
+        }
+        if(result == null){
+            startTimer();
+            Ast.Function f = new Parser(tokens, trace).nextFunction();
+            stopTimer(CompileStats.Phase.PARSE);
+            if(stats != null) stats.nodes.add(Ast.countNodes(f));
+            result = compileFunction(f);
+            if(cache != null) cache.put(key, result);
+        } else if(stats != null){
+            stats.cachedFunctions.increment();
+        }
+        if(stats != null){
+            stats.functions.increment();
+            stats.labels.add(result.numLabels);
+            stats.instructions.add(result.code.size());
+        }
+        return result;
+    }
+
+    // After: code has been written to out, and traced as it is written
+    private void write(ProgramWriter out, FunctionCode code) throws IOException{
+        if(trace != null) trace.masm(code, out.labelBase());
+        startTimer();
+        out.write(code);
+        stopTimer(CompileStats.Phase.EMIT);
     }
-    
 
-    // Before: inter is an object array with the following internal structure
-    // {Object[] smallExprInter, (String operator, Object[] smallExprInter)...}
-    // After:  Morpho assembly code for the expression has been written to the class
-    //         variable lines. The assembly code has the following Before/After:
+    // Before: lexer is positioned at the start of a program or function
+    // After:  returns the tokens of the next function, empty at the end
+    private TokenBuffer scanFunction(TokenSource lexer){
+        startTimer();
+        TokenBuffer tokens = TokenBuffer.scanFunction(lexer);
+        stopTimer(CompileStats.Phase.LEX);
+        if(stats != null){
+            int count = tokens.size();
+            if(tokens.atEnd()) count--;
+            stats.tokens.add(count);
+        }
+        return tokens;
+    }
+
+    // Before: worker was returned by submit
+    // After:  the code of its function has been written to out if no
+    //         function has failed to compile, or the errors of the function
+    //         have been added to errors if it failed. The peephole counts of
+    //         worker have been added to this Compiler's.
+    private void write(ProgramWriter out, Compiler worker, List<String> errors) throws IOException{
+        FunctionCode code;
+        try{
+            code = worker.task.join();
+        } catch(CompileError e){
+            errors.addAll(e.messages());
+            return;
+        } finally {
+            peephole.add(worker.peephole);
+        }
+        if(errors.isEmpty()) write(out, code);
+    }
+
+    // Before: lexer is positioned at the start of a program
+    // After:  the code of every function in the program has been written to
+    //         out, in source order. Each function has been lexed before it
+    //         is parsed, and only functions that are not in the cache, if
+    //         there is one, have been parsed and generated. If functions
+    //         have errors, the rest are still compiled, and the errors of
+    //         all of them are thrown at the end.
+    private void generateProgram(TokenSource lexer, ProgramWriter out) throws IOException{
+        // Each function is parsed and generated by a fork/join task with a
+        // Compiler of its own, so it has its own labels and instruction
+        // buffer. Functions are written out in source order as their tasks
+        // complete, with a bounded number of them in flight so memory use
+        // stays flat. When tracing, they are generated on this thread so the
+        // trace is printed in order.
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int maxPending = 4*pool.getParallelism();
+        ArrayDeque<Compiler> pending = new ArrayDeque<>();
+        ArrayList<String> errors = new ArrayList<>();
+        Signatures signatures = new Signatures();
+        // An empty program is parsed too, so it gets the parser's error
+        TokenBuffer tokens = scanFunction(lexer);
+        do{
+            signatures.add(tokens);
+            if(trace != null){
+                try{
+                    FunctionCode code = compileFunction(tokens);
+                    if(errors.isEmpty()) write(out, code);
+                } catch(CompileError e){
+                    errors.addAll(e.messages());
+                }
+                continue;
+            }
+            pending.add(submit(pool, tokens));
+            if(pending.size() >= maxPending) write(out, pending.remove(), errors);
+        } while(!(tokens = scanFunction(lexer)).isEmpty());
+        while(!pending.isEmpty()) write(out, pending.remove(), errors);
+        errors.addAll(signatures.check());
+        if(!errors.isEmpty()) throw new CompileError(errors);
+    }
+
+    // Before: e is the intermediate code of an expression that is a statement
+    //         of the current function, that is it appears directly in its
+    //         body or in the body of an if or while that is a statement.
+    //         tail is true if the value of the statement is the value the
+    //         function returns, that is it is in tail position.
+    // After:  Morpho assembly code for the expression has been written to the
+    //         field code. It has the same Before/After as generateExpression, and
+    //         additionally the stack holds exactly the arguments and local variables
+    //         of the function before and after it. If tail is true the code
+    //         returns from the function instead.
+    private void generateStatement(Ast.Expr e, boolean tail){
+        if(e.operands.length == 1){
+            Ast.Node node = e.operands[0];
+            if(isSelfTailCall(node)){
+                generateSelfTailCall((Ast.Call)((Ast.Return)node).value.operands[0]);
+                return;
+            }
+            if(node.type == CodeType.RETURN){
+                generateReturn(((Ast.Return)node).value);
+                return;
+            }
+            if(node.type == CodeType.IF){
+                generateIf((Ast.If)node, true, tail);
+                return;
+            }
+            if(node.type == CodeType.WHILE){
+                generateWhile((Ast.While)node, true, tail);
+                if(tail) emit(Instruction.RETURN);
+                return;
+            }
+        }
+        if(tail) generateReturn(e);
+        else generateExpression(e);
+    }
+
+    // Before: e is the intermediate code of an expression in tail position
+    // After:  Morpho assembly code that returns the value of e from the
+    //         current function has been written to the field code. The last
+    //         call made on each path through an if, or in the right operand
+    //         of a final && or ||, is followed directly by (Return), so it is
+    //         selected as a (CallR) and does not grow the stack.
+    private void generateReturn(Ast.Expr e){
+        int last = e.operands.length-1;
+        if(last == 0){
+            Ast.Node node = e.operands[0];
+            if(node.type == CodeType.IF){
+                generateIf((Ast.If)node, false, true);
+                return;
+            }
+            if(node.type == CodeType.PRIORITY){
+                generateReturn(((Ast.Priority)node).inner);
+                return;
+            }
+        } else if(isShortCircuit(e.operators[last-1])){
+            // The left operands decide the value returned, or the right one does
+            int lab = newLab();
+            generateOperands(e, last);
+            emit(Instruction.jump(shortCircuitJump(e.operators[last-1]), lab));
+            generateReturn(new Ast.Expr(e.operands[last]));
+            emit(Instruction.label(lab));
+            emit(Instruction.RETURN);
+            return;
+        }
+        generateExpression(e);
+        emit(Instruction.RETURN);
+    }
+
+    // Returns true if node is 'return f(...)' where f is the current function
+    private boolean isSelfTailCall(Ast.Node node){
+        if(node.type != CodeType.RETURN) return false;
+        Ast.Expr value = ((Ast.Return)node).value;
+        if(value.operands.length != 1 || value.operands[0].type != CodeType.CALL) return false;
+        Ast.Call call = (Ast.Call)value.operands[0];
+        return call.name == currentFunction.name && call.args.length == currentFunction.numArgs;
+    }
+
+    // Returns true if generateStatement will generate a self tail call for
+    // one of the given statements
+    private boolean hasSelfTailCall(Ast.Expr[] statements){
+        for(Ast.Expr e : statements){
+            if(e.operands.length != 1) continue;
+            Ast.Node node = e.operands[0];
+            if(isSelfTailCall(node)) return true;
+            if(node.type == CodeType.IF){
+                Ast.If ifNode = (Ast.If)node;
+                for(Ast.Expr[] body : ifNode.bodies){
+                    if(hasSelfTailCall(body)) return true;
+                }
+                if(ifNode.elseBody != null && hasSelfTailCall(ifNode.elseBody)) return true;
+            }
+            if(node.type == CodeType.WHILE && hasSelfTailCall(((Ast.While)node).body)) return true;
+        }
+        return false;
+    }
+
+    // Before: call is a call to the current function in a return statement
+    // After:  Morpho assembly code has been written to the field code
+    //         that replaces the arguments of the current call with the values of
+    //         the new arguments, resets the local variables and jumps back to the
+    //         start of the function body. No new frame is allocated.
+    private void generateSelfTailCall(Ast.Call call){
+        int numArgs = call.args.length;
+        // All new arguments are computed before any old one is overwritten
+        if(numArgs>0) generateExpression(call.args[0]);
+        for(int i=1; i<numArgs; i++){
+            emit(Instruction.PUSH);
+            generateExpression(call.args[i]);
+        }
+        if(numArgs>0) emit(Instruction.store(numArgs-1));
+        for(int i=numArgs-2; i>=0; i--){
+            emit(Instruction.popInto(i));
+        }
+        if(currentFunction.numVars>0){
+            emit(Instruction.makeVal("null"));
+            for(int i=0; i<currentFunction.numVars; i++){
+                emit(Instruction.store(numArgs+i));
+            }
+        }
+        emit(Instruction.jump(Instruction.Op.GO, entryLab));
+    }
+
+    // Before: e is the intermediate code of an expression,
+    //         operands[0] operators[0] operands[1] ...
+    // After:  Morpho assembly code for the expression has been written to the
+    //         field code. The assembly code has the following Before/After:
     // Assembly Before: The accumulator may be safely overwritten
     // Assembly After:  The value of the expression is in the accumulator
-    private static void generateExpression(Object[] inter){
-        generateSmallExpression((Object[]) inter[0]);
-        for(int i=1; i<inter.length-1; i+=2){
-            String opName = (String) inter[i];
-            emit("(Push)");
-            generateSmallExpression((Object[]) inter[i+1]);
-            emit("(Call #\""+opName+"[f2]\" 2)");
+    private void generateExpression(Ast.Expr e){
+        generateOperands(e, e.operands.length);
+    }
+
+    // Before: 0 < count <= e.operands.length
+    // After:  Morpho assembly code for operands[0] operators[0] ...
+    //         operands[count-1] of e has been written to the field code, as
+    //         for generateExpression. The right operand of && is only
+    //         evaluated when the value on its left is true, that of || only
+    //         when it is false (that is, false or null); otherwise the value
+    //         on the left is the value of the operation, as in morpho.
+    private void generateOperands(Ast.Expr e, int count){
+        generateSmallExpression(e.operands[0]);
+        for(int i=1; i<count; i++){
+            String operator = e.operators[i-1];
+            if(isShortCircuit(operator)){
+                int lab = newLab();
+                emit(Instruction.jump(shortCircuitJump(operator), lab));
+                generateSmallExpression(e.operands[i]);
+                emit(Instruction.label(lab));
+            } else {
+                emit(Instruction.PUSH);
+                generateSmallExpression(e.operands[i]);
+                emit(Instruction.call(operator, 2));
+            }
         }
     }
+
+    private static boolean isShortCircuit(String operator){
+        return operator.equals("&&") || operator.equals("||");
+    }
+
+    // Returns the jump past the right operand of the short circuit operator,
+    // taken when the value on its left is the value of the operation
+    private static Instruction.Op shortCircuitJump(String operator){
+        return operator.equals("&&") ? Instruction.Op.GOFALSE : Instruction.Op.GOTRUE;
+    }
     
-    // Before: inter is an object array with the following internal structure
-    //         {CodeType codeType, Object... codeTypeSpecificObject}
+    // Before: node is the intermediate code of a small expression, the
+    //         subclass of Ast.Node matching node.type
     //         <A more detailed description is inside each switch statement>
     // After:  Morpho assembly code for the small expression has been written to
-    //         the class variable lines.
+    //         the field code.
     //         The assembly code has the following Before/After:
     // Assembly Before: The accumulator may be safely overwritten
     // Assembly After:  The value of the small expression is in the accumulator
-    private static void generateSmallExpression(Object[] inter){
-        CodeType ct = (CodeType)inter[0];
+    private void generateSmallExpression(Ast.Node node){
+        CodeType ct = node.type;
         switch(ct){
             case NAME:
-                //inter = {CodeType codeType, Integer varID}
-                emit("(Fetch "+(int)inter[1]+")");
+                //node = <NAME>, var is the variable number
+                emit(Instruction.fetch(((Ast.Name)node).var));
                 return;
-            case ASSIGN:
-                //inter = {CodeType codeType, Integer varID, Object[] exprInter}
-                generateExpression((Object[]) inter[2]);
-                emit("(Store "+(int)inter[1]+")");
+            case ASSIGN: {
+                //node = <NAME> = <expr>
+                Ast.Assign assign = (Ast.Assign)node;
+                generateExpression(assign.value);
+                emit(Instruction.store(assign.var));
                 return;
-            case CALL:
-                //inter = {CodeType codeType, String fname, Object[]... exprInter}
-                int numArgs = inter.length-2; // first two are CodeType and name
-                if(numArgs>0) generateExpression((Object[])inter[2]);
-                for(int i=3; i<inter.length; i++){
-                    emit("(Push)");
-                    generateExpression((Object[])inter[i]);
+            }
+            case CALL: {
+                //node = <NAME>(<expr>,...)
+                Ast.Call call = (Ast.Call)node;
+                int numArgs = call.args.length;
+                if(numArgs>0) generateExpression(call.args[0]);
+                for(int i=1; i<numArgs; i++){
+                    emit(Instruction.PUSH);
+                    generateExpression(call.args[i]);
                 }
-                String fName = (String)inter[1];
-                emit("(Call #\""+fName+"[f"+numArgs+"]\" "+numArgs+")");
+                emit(Instruction.call(Symbols.name(call.name), numArgs));
                 return;
+            }
             case RETURN:
-                //inter = {CodeType codeType, Object[] exprInter}
-                generateExpression((Object[])inter[1]);
-                emit("(Return)");
+                //node = return <expr>
+                generateReturn(((Ast.Return)node).value);
                 return;
-            case UNARY:
-                //inter = {CodeType codeType, String operator, Object[] smallExprInter}
-                String opName = (String) inter[1];
-                generateSmallExpression((Object[])inter[2]);
-                emit("(Call #\""+opName+"[f1]\" 1)");
+            case UNARY: {
+                //node = <OPERATOR> <smallExpr>
+                Ast.Unary unary = (Ast.Unary)node;
+                generateSmallExpression(unary.operand);
+                if(unary.operator.equals("!")) emit(Instruction.NOT);
+                else emit(Instruction.call(unary.operator, 1));
                 return;
+            }
             case LITERAL:
-                //inter = {CodeType codeType, String literal}
-                emit("(MakeVal "+(String)inter[1]+")");
+                //node = <LITERAL>
+                emit(Instruction.makeVal(((Ast.Literal)node).value));
                 return;
             case IF:
-                //inter = {CodeType codeType, Object[] exprInterIF, Object[] bodyInterIF,
-                //        (Object[] exprInterELIF, Object[] bodyInterELIF)... , 
-                //        (Object[] bodyInterELSE)? }
-                int elseLab = newLab();
-                generateExpression((Object[])inter[1]);
-                emit("(GoFalse _"+elseLab+")");
-                generateBody((Object[])inter[2]);
-                emit("_"+elseLab+":");
-                // Deal with the elif's:
-                int i=3;
-                // while there are at least two more pieces of the
-                // intermediate code do an elif.
-                while(i<inter.length-1){
-                    elseLab = newLab();
-                    generateExpression((Object[])inter[i]);
-                    emit("(GoFalse _"+elseLab+")");
-                    generateBody((Object[])inter[i+1]);
-                    emit("_"+elseLab+":");
-                    i+=2;
-                }
-                //Deal with the else
-                if(i<inter.length){
-                    generateBody((Object[])inter[i]);
-                }
+                //node = if(conds[0]) bodies[0] (elsif(conds[i]) bodies[i])... (else elseBody)?
+                generateIf((Ast.If)node, false, false);
                 return;
             case WHILE:
-                //inter = {CodeType codeType, Object[] exprInter, Object[] bodyInter}
-                int beforeLab = newLab();
-                int afterLab = newLab();
-                emit("_"+beforeLab+":");
-                generateExpression((Object[])inter[1]);
-                emit("(GoFalse _"+afterLab+")");
-                generateBody((Object[])inter[2]);
-                emit("(Go _"+beforeLab+")");
-                emit("_"+afterLab+":");
+                //node = while(cond) body
+                generateWhile((Ast.While)node, false, true);
                 return;
             case PRIORITY:
                 // this only needs to be a code type to adhere to the standard
                 // described in the before condition. The priority has been 
                 // handled by the parser.
 
-                //inter = {CodeType codeType, Object[] exprInter}
-                generateExpression((Object[])inter[1]);
+                //node = (<expr>)
+                generateExpression(((Ast.Priority)node).inner);
                 return;
             default:
                 System.err.println("Unexpected error compiling smallExpression of type "+ct);
@@ -180,105 +524,361 @@ public class Compiler{
     }
     
 
-    // Before: inter is an object array with the following internal structure
-    //         {Object[]... exprInter}
-    // After:  The morho assembly code for the body has been stored in the class
-    //         variable lines. The assembly code has the following Before/After:
+    // Before: ifNode is the intermediate code of an if expression, statement
+    //         is true if it is a statement of the current function, tail is
+    //         true if it is in tail position
+    // After:  The morpho assembly code for the if expression has been written
+    //         to the field code, with the same Before/After as
+    //         generateSmallExpression. At most one of its bodies is
+    //         executed. If tail is true every body returns from the function,
+    //         as does the code when no body is executed.
+    private void generateIf(Ast.If ifNode, boolean statement, boolean tail){
+        int endLab = 0;
+        // When no body is executed the value of the if is the value of the
+        // last condition, which must then be computed if it is used
+        boolean valueUsed = ifNode.elseBody == null && (!statement || tail);
+        // Deal with the if and the elif's:
+        for(int i=0; i<ifNode.conds.length; i++){
+            int elseLab = newLab();
+            Ast.Expr cond = ifNode.conds[i];
+            if(valueUsed && i == ifNode.conds.length-1){
+                generateExpression(cond);
+                emit(Instruction.jump(Instruction.Op.GOFALSE, elseLab));
+            } else {
+                generateCondition(cond, cond.operands.length, false, elseLab);
+            }
+            generateBody(ifNode.bodies[i], statement, tail);
+            // Skip the remaining conditions and bodies
+            if(!tail && (i < ifNode.conds.length-1 || ifNode.elseBody != null)){
+                if(endLab == 0) endLab = newLab();
+                emit(Instruction.jump(Instruction.Op.GO, endLab));
+            }
+            emit(Instruction.label(elseLab));
+        }
+        //Deal with the else
+        if(ifNode.elseBody != null){
+            generateBody(ifNode.elseBody, statement, tail);
+        } else if(tail){
+            // The value of the last condition is returned
+            emit(Instruction.RETURN);
+        }
+        if(endLab != 0) emit(Instruction.label(endLab));
+    }
+
+    // Before: whileNode is the intermediate code of a while expression,
+    //         statement is true if it is a statement of the current function,
+    //         valueUsed is false if the value of the while is not used
+    // After:  The morpho assembly code for the while expression has been
+    //         written to the field code, with the same Before/After
+    //         as generateSmallExpression, except that the accumulator is
+    //         undefined after it if valueUsed is false. The condition is
+    //         tested at the bottom of the loop, so each iteration takes one
+    //         jump, back to the top when the condition holds.
+    private void generateWhile(Ast.While whileNode, boolean statement, boolean valueUsed){
+        int bodyLab = newLab();
+        int testLab = newLab();
+        emit(Instruction.jump(Instruction.Op.GO, testLab));
+        emit(Instruction.label(bodyLab));
+        generateBody(whileNode.body, statement, false);
+        emit(Instruction.label(testLab));
+        Ast.Expr cond = whileNode.cond;
+        if(valueUsed){
+            // The value of the while is the value of the condition that ends it
+            generateExpression(cond);
+            emit(Instruction.jump(Instruction.Op.GOTRUE, bodyLab));
+        } else {
+            generateCondition(cond, cond.operands.length, true, bodyLab);
+        }
+    }
+
+    // Before: 0 < count <= e.operands.length, lab is a label of the current
+    //         function
+    // After:  Morpho assembly code has been written to the field code that
+    //         jumps to lab if operands[0] operators[0] ... operands[count-1]
+    //         of e is true (neither false nor null) and jumpIfTrue is true,
+    //         or if it is false and jumpIfTrue is false, and otherwise falls
+    //         through. The accumulator is undefined after it, a ! or a
+    //         literal is not computed but decides which way to jump, and the
+    //         operands of && and || jump straight to lab or past the rest.
+    private void generateCondition(Ast.Expr e, int count, boolean jumpIfTrue, int lab){
+        if(count == 1){
+            generateCondition(e.operands[0], jumpIfTrue, lab);
+            return;
+        }
+        String operator = e.operators[count-2];
+        if(!isShortCircuit(operator)){
+            generateOperands(e, count);
+            emit(Instruction.jump(jumpIfTrue ? Instruction.Op.GOTRUE : Instruction.Op.GOFALSE, lab));
+            return;
+        }
+        // A false left side decides &&, a true one decides ||
+        boolean leftDecides = operator.equals("||");
+        if(leftDecides == jumpIfTrue){
+            generateCondition(e, count-1, jumpIfTrue, lab);
+            generateCondition(e.operands[count-1], jumpIfTrue, lab);
+        } else {
+            int skipLab = newLab();
+            generateCondition(e, count-1, leftDecides, skipLab);
+            generateCondition(e.operands[count-1], jumpIfTrue, lab);
+            emit(Instruction.label(skipLab));
+        }
+    }
+
+    // Before: node is the intermediate code of a small expression
+    // After:  as generateCondition for the expression that is just node
+    private void generateCondition(Ast.Node node, boolean jumpIfTrue, int lab){
+        switch(node.type){
+            case UNARY: {
+                Ast.Unary unary = (Ast.Unary)node;
+                if(unary.operator.equals("!")){
+                    generateCondition(unary.operand, !jumpIfTrue, lab);
+                    return;
+                }
+                break;
+            }
+            case PRIORITY: {
+                Ast.Expr inner = ((Ast.Priority)node).inner;
+                generateCondition(inner, inner.operands.length, jumpIfTrue, lab);
+                return;
+            }
+            case LITERAL: {
+                String value = ((Ast.Literal)node).value;
+                boolean isTrue = !value.equals("false") && !value.equals("null");
+                if(isTrue == jumpIfTrue) emit(Instruction.jump(Instruction.Op.GO, lab));
+                return;
+            }
+            default:
+                break;
+        }
+        generateSmallExpression(node);
+        emit(Instruction.jump(jumpIfTrue ? Instruction.Op.GOTRUE : Instruction.Op.GOFALSE, lab));
+    }
+
+    // Before: body is the intermediate code of the expressions in a body,
+    //         statement is true if the body belongs to a statement of the
+    //         current function, tail is true if the body is in tail position
+    // After:  The morho assembly code for the body has been stored in the
+    //         field code. The assembly code has the following Before/After:
     // Assembly Before: The accumulator may be safely overwritten
     // Assembly After:  The value of the last expression executed is in the accumulator 
-    private static void generateBody(Object[] inter){
-        for(int i=0; i<inter.length; i++){
-            if(i!=0) emit("(Push)");
-            generateExpression((Object[]) inter[i]);
+    //                  and the stack is as it was before, or if tail is true
+    //                  the code has returned that value from the function
+    private void generateBody(Ast.Expr[] body, boolean statement, boolean tail){
+        for(int i=0; i<body.length; i++){
+            boolean last = tail && i == body.length-1;
+            if(statement) generateStatement(body[i], last);
+            else if(last) generateReturn(body[i]);
+            else generateExpression(body[i]);
         }
     }
     
     
     
+    // Before: file is the path of a nanoMorpho source file
+    // After:  the morpho assembly code for the program in file has been written
+    //         to <name>.masm in the directory outDir, where <name> is the name
+    //         of file without its extension, or assembled and linked into the
+    //         morpho executable <name>.mexe if the Compiler writes executables
+    public void compile(Path file, Path outDir) throws IOException{
+        // Large files are scanned in place, mapped into memory, smaller ones
+        // are read by this thread's Lexer
+        SourceReader source = null;
+        TokenSource lexer;
+        long size = Files.size(file);
+        if(size >= MAPPED_SIZE && size <= Integer.MAX_VALUE){
+            lexer = MappedLexer.open(file);
+        } else {
+            source = SourceReader.open(file);
+            lexer = source.lexer();
+        }
+
+        // get the proper name of the file without an extension (if there was any)
+        String name = file.getFileName().toString();
+        if(name.contains(".")) name = name.substring(0,name.lastIndexOf('.'));
+        // Define an output file
+        Path outFile = outDir.resolve(name+(mexe ? ".mexe" : ".masm"));
+        
+        // Parse, optimize and generate the program one function at a time,
+        // writing each function out as soon as its code has been generated
+        if(trace != null){
+            trace.line("<Compiling program>");
+            trace.line("");
+        }
+        if(statsOut != null){
+            stats = new CompileStats();
+            timer = stats.timer();
+        }
+        ProgramWriter out = mexe ? new MexeWriter(outFile, file.getFileName().toString()) : new MasmWriter(outFile, name);
+        boolean done = false;
+        try{
+            if(trace != null) trace.masmHeader(name);
+            generateProgram(lexer, out);
+            if(trace != null) trace.masmFooter();
+            startTimer();
+            out.close();
+            stopTimer(CompileStats.Phase.EMIT);
+            done = true;
+        } finally {
+            if(!done) out.abort();
+            if(source != null) source.close();
+            if(trace != null) trace.flush();
+        }
+        if(stats != null){
+            stats.write(statsOut, file.toString());
+            stats = null;
+            timer = null;
+        }
+        
+        if(trace != null){
+            trace.line("");
+            trace.line("<Done compiling program>");
+            if(optimize){
+                trace.line("");
+                trace.line("<Peephole optimizer>");
+                peephole.report(trace);
+            }
+            trace.flush();
+        }
+    }
+    
     public static void main(String[] args) throws Exception{
-        Path file = null;
-        Path outFile = null;
+        if(args.length == 2 && args[0].equals("--server")){
+            try{
+                new CompileServer(Paths.get(args[1])).serve();
+            } catch (IOException e){
+                System.err.println("Could not start the compile server: "+e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+        int status = run(args, Paths.get(""), System.out, System.err);
+        if(status != 0) System.exit(status);
+    }
+
+    // Before: args are command line arguments for the compiler, relative paths
+    //         in them are relative to dir
+    // After:  the files in args have been compiled into dir, statistics have
+    //         been written to out and errors to err, and the exit status of
+    //         the compilation is returned
+    public static int run(String[] args, Path dir, PrintStream out, PrintStream err) throws InterruptedException{
+        boolean verbose = false;
+        boolean optimize = false;
+        boolean stats = false;
+        boolean mexe = false;
+        Path traceFile = null;
+        int jobs = 1;
+        Path cacheDir = null;
+        ArrayList<Path> files = new ArrayList<>();
 
         // Handle arguments in a very crude way
         //(Couldn't be bothered to find and set up a decent args library)
-        if(args.length == 0){
-            // Too few arguments:
-            System.err.println("No file specified for compilation!");
-            System.exit(1);
-        }
-        if(args.length > 2){
-            // Too many arguments:
-            String unknowns = "";
-            boolean filePassed = false;
-            // Make some semblance of an error message
-            //(May or may not be actually helpful)
-            for(String arg : args){
-                if(!arg.equalsIgnoreCase("-v")){
-                    if(filePassed) unknowns += arg+", ";
-                    else filePassed = true;
+        // Options may appear anywhere, anything else that does not start with
+        // '-' is taken to be a file.
+        for(int i=0; i<args.length; i++){
+            String arg = args[i];
+            if(arg.equalsIgnoreCase("-v")){
+                verbose = true;
+            } else if(arg.equals("-O")){
+                optimize = true;
+            } else if(arg.equals("-j")){
+                try{
+                    jobs = Integer.parseInt(args[++i]);
+                    if(jobs < 1) throw new NumberFormatException();
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e){
+                    err.println("'-j' must be followed by a positive number of jobs.");
+                    return 1;
                 }
-            }
-            unknowns = unknowns.substring(0,unknowns.length()-2);
-            System.err.println("Unrecognised arguments: "+unknowns+"\nUse '-v' for verbose mode.");
-            System.exit(1);
-        }
-        if(args.length == 1){
-            // Just the filename (I presume)
-            file = Paths.get(args[0]);
-        } else {
-            // Here we need to check wether the case is "-v filename" or "filename -v":
-            verbose = args[0].equalsIgnoreCase("-v");
-            if(verbose){
-                // "-v" was the first arg, so the second one should be the file.
-                file = Paths.get(args[1]);
-            } else {
-                // "-v" was not the first arg, so the first arg should be the file
-                file = Paths.get(args[0]);
-                // The second arg should be "-v"
-                verbose = args[1].equalsIgnoreCase("-v");
-                if(!verbose){
-                    // If the second arg was not "-v" then something is wrong!
-                    System.err.println("Unrecognised argument: "+args[1]+"\nUse '-v' for verbose mode.");
-                    System.exit(1);
+            } else if(arg.equals("--trace")){
+                if(i+1 == args.length){
+                    err.println("'--trace' must be followed by a file.");
+                    return 1;
+                }
+                verbose = true;
+                traceFile = dir.resolve(args[++i]);
+            } else if(arg.equals("--stats")){
+                stats = true;
+            } else if(arg.equals("--mexe")){
+                mexe = true;
+            } else if(arg.equals("--cache")){
+                if(i+1 == args.length){
+                    err.println("'--cache' must be followed by a directory.");
+                    return 1;
                 }
+                cacheDir = dir.resolve(args[++i]);
+            } else if(arg.startsWith("-")){
+                err.println("Unrecognised argument: "+arg);
+                err.println("Usage: java Compiler [-v] [-O] [-j N] [--trace file] [--stats] [--cache dir] [--mexe] file...");
+                err.println("       java Compiler --server socket");
+                return 1;
+            } else {
+                files.add(dir.resolve(arg));
             }
         }
+        if(files.isEmpty()){
+            // Too few arguments:
+            err.println("No file specified for compilation!");
+            return 1;
+        }
         
         // COMPILER CODE HERE /////////////////////////////////////////////////////////////////////////
 
-        // At this point verbose should accurately depict wether or not the user wants a verbose compilation
-        // and file should contain the path to the file the user wants to compile.
+        // At this point verbose and optimize should accurately depict wether or not the user wants a verbose
+        // and optimized compilation and files should contain the paths to the files the user wants to compile.
+        // Each file gets its own Compiler, up to jobs of them run at the same time.
 
-        Lexer lexer = null;
-        try{
-            lexer = new Lexer(new FileReader(file.toString()));
-        } catch (FileNotFoundException e){
-            System.err.println("Could not find file "+file.toString()+"! Make sure the path/spelling is correct.");
-            System.exit(1);
+        FunctionCache cache = null;
+        if(cacheDir != null){
+            try{
+                cache = new FunctionCache(cacheDir);
+            } catch (IOException e){
+                err.println("Could not create the cache directory "+cacheDir+": "+e);
+                return 1;
+            }
+        }
+        final FunctionCache c = cache;
+        final PrintStream s = stats ? out : null;
+        PrintStream traceOut = null;
+        if(traceFile != null){
+            try{
+                traceOut = new PrintStream(new BufferedOutputStream(new FileOutputStream(traceFile.toFile()), 1 << 16), false, "UTF-8");
+            } catch (IOException e){
+                err.println("Could not create the trace file "+traceFile+": "+e);
+                return 1;
+            }
+        } else if(verbose){
+            traceOut = out;
         }
+        final PrintStream t = traceOut;
 
-        // get the proper name of the file without an extension (if there was any)
-        String name = file.getFileName().toString();
-        if(name.contains(".")) name = name.substring(0,name.lastIndexOf('.'));
-        // Define an output file
-        String outName = name+".masm";
-        outFile = Paths.get(outName);
-        
-        Parser parser = new Parser(lexer,verbose);
-        
-        // Parse the program into intermediate code
-        if(verbose) System.out.println("<Parsing program>\n");
-        Object[] inter = parser.program();
-        if(verbose) System.out.println("<Done parsing program>\n\n<Compiling program>\n");
-        
-        // Generate the program from the intermediate code
-        generateProgram(name,inter);
-        
-        if(verbose) System.out.println("\n<Done compiling program>");
-        
-        ////////////////////////////////////////////////////////////////////////////////////////////////
-        
-        // Finally write to the file
-        Files.write(outFile, lines, Charset.forName("UTF-8"));
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(jobs, files.size()));
+        ArrayList<Future<?>> results = new ArrayList<>();
+        for(Path file : files){
+            final boolean o = optimize;
+            final boolean m = mexe;
+            results.add(pool.submit(() -> {
+                new Compiler(t, o, c, s, m).compile(file, dir);
+                return null;
+            }));
+        }
+        pool.shutdown();
+
+        boolean failed = false;
+        for(int i=0; i<files.size(); i++){
+            try{
+                results.get(i).get();
+            } catch (ExecutionException e){
+                failed = true;
+                Throwable cause = e.getCause();
+                if(cause instanceof FileNotFoundException || cause instanceof NoSuchFileException){
+                    err.println("Could not find file "+files.get(i)+"! Make sure the path/spelling is correct.");
+                } else if(cause instanceof CompileError){
+                    err.println(cause.getMessage());
+                } else {
+                    err.println("Compiling "+files.get(i)+" failed: "+cause);
+                }
+            }
+        }
+        if(traceFile != null) traceOut.close();
+        return failed ? 1 : 0;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,128 @@
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+
+/**
+ * An on-disk cache of generated function code, used with --cache DIR.
+ *
+ * The code generated for a function depends only on the function's own
+ * tokens and the compiler flags, so entries are keyed by a SHA-256 hash of
+ * those. Labels in a FunctionCode are numbered within the function, so a
+ * cached function can be written out among freshly generated ones. Each
+ * entry is a file in the cache directory, written to a temporary file first
+ * so concurrent compilations never see a partial entry. Unreadable entries
+ * are treated as missing.
+ */
+public class FunctionCache {
+
+    // Changes whenever the generated code or the entry format changes,
+    // invalidating old entries
+    private static final int VERSION = 6;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Path dir;
+
+    public FunctionCache(Path dir) throws IOException{
+        this.dir = dir;
+        Files.createDirectories(dir);
+    }
+
+    // Before: tokens are the tokens of a function
+    // After:  returns the key of the function's code when compiled with the given flags
+    public String key(TokenBuffer tokens, boolean optimize){
+        MessageDigest digest;
+        try{
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e){
+            throw new Error(e);
+        }
+        byte[] header = {(byte)VERSION, (byte)(optimize ? 1 : 0)};
+        digest.update(header);
+        byte[] number = new byte[4];
+        for(int i=0; i<tokens.size(); i++){
+            int kind = tokens.kind(i);
+            update(digest, number, kind);
+            if(kind == Parser.NAME || kind == Parser.OPERATOR || kind == Parser.LITERAL || kind == Parser.ERR){
+                // Symbol numbers differ from run to run, their names do not
+                byte[] text = tokens.lexeme(i).getBytes(UTF8);
+                // The length keeps adjacent lexemes from running together
+                update(digest, number, text.length);
+                digest.update(text);
+            }
+        }
+        byte[] hash = digest.digest();
+        char[] hex = new char[2*hash.length];
+        for(int i=0; i<hash.length; i++){
+            hex[2*i] = HEX[(hash[i]>>4)&15];
+            hex[2*i+1] = HEX[hash[i]&15];
+        }
+        return new String(hex);
+    }
+
+    private static void update(MessageDigest digest, byte[] buffer, int n){
+        buffer[0] = (byte)(n>>24);
+        buffer[1] = (byte)(n>>16);
+        buffer[2] = (byte)(n>>8);
+        buffer[3] = (byte)n;
+        digest.update(buffer);
+    }
+
+    // Returns the cached code for key, or null if there is none
+    public FunctionCode get(String key){
+        Path file = dir.resolve(key);
+        if(!Files.exists(file)) return null;
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))){
+            if(in.readInt() != VERSION) return null;
+            String name = in.readUTF();
+            int numArgs = in.readInt();
+            int numLabels = in.readInt();
+            int count = in.readInt();
+            Instruction.Op[] ops = Instruction.Op.values();
+            ArrayList<Instruction> code = new ArrayList<>(count);
+            for(int i=0; i<count; i++){
+                Instruction.Op op = ops[in.readByte()];
+                int n = in.readInt();
+                String s = in.readBoolean() ? in.readUTF() : null;
+                code.add(Instruction.of(op, n, s));
+            }
+            return new FunctionCode(name, numArgs, code, numLabels);
+        } catch (IOException | RuntimeException e){
+            return null;
+        }
+    }
+
+    // After: code is cached under key, if the entry could be written
+    public void put(String key, FunctionCode code){
+        Path file = dir.resolve(key);
+        Path temp = null;
+        try{
+            temp = Files.createTempFile(dir, key, ".tmp");
+            try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))){
+                out.writeInt(VERSION);
+                out.writeUTF(code.name);
+                out.writeInt(code.numArgs);
+                out.writeInt(code.numLabels);
+                out.writeInt(code.code.size());
+                for(Instruction insn : code.code){
+                    out.writeByte(insn.op.ordinal());
+                    out.writeInt(insn.n);
+                    out.writeBoolean(insn.s != null);
+                    if(insn.s != null) out.writeUTF(insn.s);
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e){
+            // The cache is only an optimization, the code will be generated again next time
+            try{
+                if(temp != null) Files.deleteIfExists(temp);
+            } catch (IOException ignored){
+            }
+        }
+    }
+}
@@ -0,0 +1,23 @@
+import java.util.ArrayList;
+
+/**
+ * The generated morpho assembly code of one function.
+ *
+ * Labels in the code are numbered 1..numLabels within the function. They
+ * are only made unique within the module when the code is written out, by
+ * adding the number of labels of all functions written before it, so the
+ * code of each function can be generated independently of the others.
+ */
+public final class FunctionCode {
+    public final String name;
+    public final int numArgs;
+    public final ArrayList<Instruction> code;
+    public final int numLabels;
+
+    public FunctionCode(String name, int numArgs, ArrayList<Instruction> code, int numLabels){
+        this.name = name;
+        this.numArgs = numArgs;
+        this.code = code;
+        this.numLabels = numLabels;
+    }
+}
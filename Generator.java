@@ -0,0 +1,247 @@
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * Generates synthetic nanoMorpho programs for benchmarking and scale testing.
+ *
+ * Usage: java Generator [options] [file]
+ *   --functions N    number of functions (default 100)
+ *   --statements N   statements in the body of each function (default 10)
+ *   --depth N        maximum nesting depth of if and while statements (default 3)
+ *   --compound X     chance that a statement is an if or while, where the
+ *                    depth allows (default 0.35)
+ *   --body N         maximum number of statements in an if or while body (default 3)
+ *   --branches N     maximum number of bodies of an if statement, counting
+ *                    elsif and else bodies (default 4)
+ *   --length N       maximum number of operands in an expression that is not
+ *                    nested in another (default 5)
+ *   --vars N         local variables declared in each function (default 4)
+ *   --skew X         how strongly uses of names favour the first ones declared,
+ *                    0 for uniform (default 1)
+ *   --name-length N  minimum length of identifiers (default 1)
+ *   --seed N         seed of the random generator (default 0)
+ *
+ * The program is written to file, or to standard output. It uses every
+ * construct the Parser accepts: functions, var declarations, if/elsif/else,
+ * while, calls, assignments, return, unary and binary operators and
+ * parenthesized expressions. Generated programs always compile: every
+ * variable is declared and every call is to a function of the program with
+ * the right number of arguments. They are not meant to be run, loops and
+ * recursion need not terminate, but they have a main function so they can
+ * be assembled. The same options and seed always give the same program.
+ */
+public class Generator {
+
+    private static final String[] OPERATORS = {"+", "-", "*", "<", "==", "!=", ">"};
+
+    public int functions = 100;
+    public int statements = 10;
+    public int depth = 3;
+    public double compound = 0.35;
+    public int body = 3;
+    public int branches = 4;
+    public int length = 5;
+    public int vars = 4;
+    public double skew = 1;
+    public int nameLength = 1;
+
+    private final Random random;
+    private Writer out;
+    // The number of arguments of each function
+    private int[] arity;
+    // The names of the arguments and variables of the function being generated
+    private String[] names;
+
+    public Generator(long seed){
+        random = new Random(seed);
+    }
+
+    // After: the program has been written to out
+    public void generate(Writer out) throws IOException{
+        this.out = out;
+        arity = new int[functions];
+        for(int k=0; k<functions; k++) arity[k] = random.nextInt(4);
+        for(int k=0; k<functions; k++) function(k);
+        // The assembler wants a main function
+        out.write("main(){\n\t");
+        out.write(name('f', 0));
+        out.write('(');
+        for(int i=0; i<arity[0]; i++) out.write(i > 0 ? ", 0" : "0");
+        out.write(");\n}\n");
+        this.out = null;
+    }
+
+    // Returns a name for the index'th identifier of a kind, unique within
+    // that kind and at least nameLength characters long
+    private String name(char kind, int index){
+        StringBuilder sb = new StringBuilder().append(kind).append(index);
+        // Names contain a digit so they never collide with a keyword
+        while(sb.length() < nameLength) sb.append((char)('a'+(index+sb.length())%26));
+        return sb.toString();
+    }
+
+    // Returns a random index below n, favouring low indices by skew
+    private int pick(int n){
+        return Math.min(n-1, (int)(n*Math.pow(random.nextDouble(), 1+skew)));
+    }
+
+    private void function(int k) throws IOException{
+        names = new String[arity[k]+vars];
+        for(int i=0; i<arity[k]; i++) names[i] = name('a', i);
+        for(int i=0; i<vars; i++) names[arity[k]+i] = name('v', i);
+
+        out.write(name('f', k));
+        out.write('(');
+        for(int i=0; i<arity[k]; i++){
+            if(i > 0) out.write(", ");
+            out.write(names[i]);
+        }
+        out.write("){\n");
+        if(vars > 0){
+            out.write("\tvar ");
+            for(int i=0; i<vars; i++){
+                if(i > 0) out.write(", ");
+                out.write(names[arity[k]+i]);
+            }
+            out.write(";\n");
+        }
+        for(int i=0; i<statements; i++) statement(1);
+        out.write("\treturn ");
+        expression(0);
+        out.write(";\n}\n\n");
+    }
+
+    private void indent(int level) throws IOException{
+        for(int i=0; i<level; i++) out.write('\t');
+    }
+
+    private void body(int level) throws IOException{
+        out.write("{\n");
+        int count = 1+random.nextInt(this.body);
+        for(int i=0; i<count; i++) statement(level+1);
+        indent(level);
+        out.write('}');
+    }
+
+    private void statement(int level) throws IOException{
+        indent(level);
+        boolean compound = level <= depth && random.nextDouble() < this.compound;
+        int kind = random.nextInt(10);
+        if(compound && kind < 6){
+            out.write("if(");
+            expression(0);
+            out.write(')');
+            body(level);
+            int more = random.nextInt(branches);
+            boolean hasElse = more > 0 && random.nextBoolean();
+            for(int i=hasElse ? 1 : 0; i<more; i++){
+                out.write("elsif(");
+                expression(0);
+                out.write(')');
+                body(level);
+            }
+            if(hasElse){
+                out.write("else");
+                body(level);
+            }
+        } else if(compound){
+            out.write("while(");
+            expression(0);
+            out.write(')');
+            body(level);
+        } else if(kind < 8 && names.length > 0){
+            out.write(names[pick(names.length)]);
+            out.write(" = ");
+            expression(0);
+        } else {
+            expression(0);
+        }
+        out.write(";\n");
+    }
+
+    // Only expressions at the top have up to length operands, those nested
+    // in calls and parentheses get shorter with nesting so programs stay finite
+    private void expression(int nesting) throws IOException{
+        int max = nesting == 0 ? length : Math.min(length, 8) >> (nesting-1);
+        int operands = 1+random.nextInt(Math.max(1, max));
+        smallExpression(nesting);
+        for(int i=1; i<operands; i++){
+            // Spaces keep operators apart, the lexer would read "<-" as one
+            out.write(' ');
+            out.write(OPERATORS[random.nextInt(OPERATORS.length)]);
+            out.write(' ');
+            smallExpression(nesting);
+        }
+    }
+
+    private void smallExpression(int nesting) throws IOException{
+        int kind = random.nextInt(10);
+        if(kind < 4 && names.length > 0){
+            out.write(names[pick(names.length)]);
+        } else if(kind < 6 || nesting > 2){
+            out.write(Integer.toString(random.nextInt(100)));
+        } else if(kind < 8){
+            int f = pick(functions);
+            out.write(name('f', f));
+            out.write('(');
+            for(int i=0; i<arity[f]; i++){
+                if(i > 0) out.write(", ");
+                expression(nesting+1);
+            }
+            out.write(')');
+        } else if(kind < 9){
+            out.write('(');
+            expression(nesting+1);
+            out.write(')');
+        } else {
+            out.write("- ");
+            smallExpression(nesting+1);
+        }
+    }
+
+    public static void main(String[] args) throws IOException{
+        Generator generator = null;
+        String file = null;
+        try{
+            long seed = 0;
+            for(int i=0; i<args.length; i++){
+                if(args[i].equals("--seed")) seed = Long.parseLong(args[++i]);
+            }
+            generator = new Generator(seed);
+            for(int i=0; i<args.length; i++){
+                switch(args[i]){
+                    case "--seed":        i++; break;
+                    case "--functions":   generator.functions = Integer.parseInt(args[++i]); break;
+                    case "--statements":  generator.statements = Integer.parseInt(args[++i]); break;
+                    case "--depth":       generator.depth = Integer.parseInt(args[++i]); break;
+                    case "--compound":    generator.compound = Double.parseDouble(args[++i]); break;
+                    case "--body":        generator.body = Integer.parseInt(args[++i]); break;
+                    case "--branches":    generator.branches = Integer.parseInt(args[++i]); break;
+                    case "--length":      generator.length = Integer.parseInt(args[++i]); break;
+                    case "--vars":        generator.vars = Integer.parseInt(args[++i]); break;
+                    case "--skew":        generator.skew = Double.parseDouble(args[++i]); break;
+                    case "--name-length": generator.nameLength = Integer.parseInt(args[++i]); break;
+                    default:
+                        if(file != null) throw new NumberFormatException();
+                        file = args[i];
+                }
+            }
+            if(generator.functions < 1 || generator.statements < 0 || generator.depth < 0
+               || generator.compound < 0 || generator.compound > 1 || generator.body < 1 || generator.branches < 1 || generator.length < 1 || generator.vars < 0 || generator.skew < 0) throw new NumberFormatException();
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e){
+            System.err.println("Usage: java Generator [--functions N] [--statements N] [--depth N] [--compound X] [--body N]");
+            System.err.println("                      [--branches N] [--length N] [--vars N] [--skew X] [--name-length N] [--seed N] [file]");
+            System.exit(1);
+        }
+
+        Writer out = file == null
+            ? new OutputStreamWriter(System.out, Charset.forName("UTF-8"))
+            : Files.newBufferedWriter(Paths.get(file), Charset.forName("UTF-8"));
+        out = new BufferedWriter(out, 1 << 16);
+        generator.generate(out);
+        out.close();
+    }
+}
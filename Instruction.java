@@ -0,0 +1,163 @@
+/**
+ * A single morpho assembly instruction, or a label.
+ *
+ * The Compiler generates lists of these and they are only turned into
+ * assembly text when the program is written out, so optimization passes can
+ * inspect and rewrite the code without parsing strings. Instructions are
+ * immutable; the operand-less ones are shared.
+ */
+public final class Instruction {
+
+    public static enum Op {
+        MAKEVAL("MakeVal"), MAKEVALP("MakeValP"), MAKEVALR("MakeValR"),
+        FETCH("Fetch"), FETCHP("FetchP"), FETCHR("FetchR"),
+        STORE("Store"), STOREP("StoreP"), STORER("StoreR"), POPINTO("PopInto"),
+        PUSH("Push"), CALL("Call"), CALLR("CallR"), RETURN("Return"),
+        NOT("Not"), NOTR("NotR"),
+        GO("Go"), GOFALSE("GoFalse"), GOTRUE("GoTrue"),
+        LABEL(null);
+
+        // The name of the operation in morpho assembly
+        public final String name;
+
+        Op(String name){
+            this.name = name;
+        }
+
+        public boolean isJump(){
+            return this == GO || this == GOFALSE || this == GOTRUE;
+        }
+
+        // Whether the operation returns from the function, the P and R
+        // variants do what the operation does after a (Push) or before a
+        // (Return)
+        public boolean returns(){
+            return this == RETURN || this == MAKEVALR || this == FETCHR || this == STORER || this == CALLR || this == NOTR;
+        }
+    }
+
+    public static final Instruction PUSH = new Instruction(Op.PUSH, 0, null);
+    public static final Instruction RETURN = new Instruction(Op.RETURN, 0, null);
+    // Replaces the accumulator by true if it is false or null, else by false
+    public static final Instruction NOT = new Instruction(Op.NOT, 0, null);
+    public static final Instruction NOTR = new Instruction(Op.NOTR, 0, null);
+
+    public final Op op;
+    // The variable number for the FETCH, STORE and POPINTO operations, the
+    // label number within the function for LABEL and jumps and the number of
+    // arguments for CALL and CALLR
+    public final int n;
+    // The literal for the MAKEVAL operations and the function name for CALL
+    // and CALLR
+    public final String s;
+
+    private Instruction(Op op, int n, String s){
+        this.op = op;
+        this.n = n;
+        this.s = s;
+    }
+
+    public static Instruction makeVal(String literal){
+        return new Instruction(Op.MAKEVAL, 0, literal);
+    }
+
+    public static Instruction makeValP(String literal){
+        return new Instruction(Op.MAKEVALP, 0, literal);
+    }
+
+    public static Instruction makeValR(String literal){
+        return new Instruction(Op.MAKEVALR, 0, literal);
+    }
+
+    public static Instruction fetch(int var){
+        return new Instruction(Op.FETCH, var, null);
+    }
+
+    public static Instruction fetchP(int var){
+        return new Instruction(Op.FETCHP, var, null);
+    }
+
+    public static Instruction fetchR(int var){
+        return new Instruction(Op.FETCHR, var, null);
+    }
+
+    public static Instruction store(int var){
+        return new Instruction(Op.STORE, var, null);
+    }
+
+    public static Instruction storeP(int var){
+        return new Instruction(Op.STOREP, var, null);
+    }
+
+    public static Instruction storeR(int var){
+        return new Instruction(Op.STORER, var, null);
+    }
+
+    public static Instruction popInto(int var){
+        return new Instruction(Op.POPINTO, var, null);
+    }
+
+    public static Instruction call(String fName, int numArgs){
+        return new Instruction(Op.CALL, numArgs, fName);
+    }
+
+    public static Instruction callR(String fName, int numArgs){
+        return new Instruction(Op.CALLR, numArgs, fName);
+    }
+
+    public static Instruction jump(Op op, int lab){
+        return new Instruction(op, lab, null);
+    }
+
+    public static Instruction label(int lab){
+        return new Instruction(Op.LABEL, lab, null);
+    }
+
+    // Returns the instruction with the given fields, as read back by FunctionCache
+    public static Instruction of(Op op, int n, String s){
+        if(op == Op.PUSH) return PUSH;
+        if(op == Op.RETURN) return RETURN;
+        if(op == Op.NOT) return NOT;
+        if(op == Op.NOTR) return NOTR;
+        return new Instruction(op, n, s);
+    }
+
+    // After: the assembly text of the instruction has been appended to sb,
+    //        with labelBase added to label numbers
+    public void render(StringBuilder sb, int labelBase){
+        switch(op){
+            case LABEL:
+                sb.append('_').append(labelBase+n).append(':');
+                return;
+            case PUSH:
+            case RETURN:
+            case NOT:
+            case NOTR:
+                sb.append('(').append(op.name).append(')');
+                return;
+            case MAKEVAL:
+            case MAKEVALP:
+            case MAKEVALR:
+                sb.append('(').append(op.name).append(' ').append(s).append(')');
+                return;
+            case CALL:
+            case CALLR:
+                sb.append('(').append(op.name).append(" #\"").append(s).append("[f").append(n).append("]\" ").append(n).append(')');
+                return;
+            case GO:
+            case GOFALSE:
+            case GOTRUE:
+                sb.append('(').append(op.name).append(" _").append(labelBase+n).append(')');
+                return;
+            default:
+                sb.append('(').append(op.name).append(' ').append(n).append(')');
+                return;
+        }
+    }
+
+    public String toString(){
+        StringBuilder sb = new StringBuilder();
+        render(sb, 0);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,78 @@
+import java.util.Arrays;
+
+/**
+ * A map from non-negative ints to ints, by open addressing with linear
+ * probing in a pair of int arrays, so nothing is boxed. The Parser maps the
+ * symbols of variables to their numbers with it.
+ */
+public final class IntMap {
+
+    private static final int FREE = -1;
+
+    private int[] keys;
+    private int[] values;
+    private int size = 0;
+
+    public IntMap(){
+        keys = new int[16];
+        values = new int[16];
+        Arrays.fill(keys, FREE);
+    }
+
+    private int slot(int key){
+        return key * 0x9E3779B9 >>> 8 & (keys.length-1);
+    }
+
+    private int indexOf(int key){
+        for(int i=slot(key); keys[i] != FREE; i=(i+1) & (keys.length-1)){
+            if(keys[i] == key) return i;
+        }
+        return -1;
+    }
+
+    // Returns the value of key, or -1 if it has none
+    public int get(int key){
+        int i = indexOf(key);
+        return i < 0 ? -1 : values[i];
+    }
+
+    public boolean containsKey(int key){
+        return indexOf(key) >= 0;
+    }
+
+    // Before: key >= 0
+    // After:  the value of key is value
+    public void put(int key, int value){
+        int i = indexOf(key);
+        if(i >= 0){
+            values[i] = value;
+            return;
+        }
+        if(2*(size+1) > keys.length) grow();
+        for(i=slot(key); keys[i] != FREE; i=(i+1) & (keys.length-1));
+        keys[i] = key;
+        values[i] = value;
+        size++;
+    }
+
+    private void grow(){
+        int[] oldKeys = keys, oldValues = values;
+        keys = new int[2*oldKeys.length];
+        values = new int[2*oldKeys.length];
+        Arrays.fill(keys, FREE);
+        for(int j=0; j<oldKeys.length; j++){
+            if(oldKeys[j] == FREE) continue;
+            int i = slot(oldKeys[j]);
+            while(keys[i] != FREE) i = (i+1) & (keys.length-1);
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+    // After: the map is empty, and keeps its capacity
+    public void clear(){
+        if(size == 0) return;
+        Arrays.fill(keys, FREE);
+        size = 0;
+    }
+}
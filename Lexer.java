@@ -19,7 +19,7 @@
 	
  */
 
-public class Lexer {
+public class Lexer implements TokenSource {
 
   /** This character denotes the end of file */
   public static final int YYEOF = -1;
@@ -36,7 +36,7 @@ public class Lexer {
    *                  at the beginning of a line
    * l is of the form l = 2*k, k a non negative integer
    */
-  private static final int ZZ_LEXSTATE[] = { 
+  static final int ZZ_LEXSTATE[] = { 
      0, 0
   };
 
@@ -162,12 +162,12 @@ public class Lexer {
   /** 
    * Translates characters to character classes
    */
-  private static final char [] ZZ_CMAP = zzUnpackCMap(ZZ_CMAP_PACKED);
+  static final char [] ZZ_CMAP = zzUnpackCMap(ZZ_CMAP_PACKED);
 
   /** 
    * Translates DFA states to action switch labels.
    */
-  private static final int [] ZZ_ACTION = zzUnpackAction();
+  static final int [] ZZ_ACTION = zzUnpackAction();
 
   private static final String ZZ_ACTION_PACKED_0 =
     "\1\0\1\1\1\2\1\3\1\4\1\1\4\3\1\1"+
@@ -199,7 +199,7 @@ public class Lexer {
   /** 
    * Translates a state to a row index in the transition table
    */
-  private static final int [] ZZ_ROWMAP = zzUnpackRowMap();
+  static final int [] ZZ_ROWMAP = zzUnpackRowMap();
 
   private static final String ZZ_ROWMAP_PACKED_0 =
     "\0\0\0\37\0\76\0\135\0\174\0\233\0\272\0\331"+
@@ -231,7 +231,7 @@ public class Lexer {
   /** 
    * The transition table of the DFA
    */
-  private static final int [] ZZ_TRANS = zzUnpackTrans();
+  static final int [] ZZ_TRANS = zzUnpackTrans();
 
   private static final String ZZ_TRANS_PACKED_0 =
     "\1\2\1\3\1\2\1\4\1\5\1\6\1\2\1\4"+
@@ -321,7 +321,7 @@ public class Lexer {
   /**
    * ZZ_ATTRIBUTE[aState] contains the attributes of state <code>aState</code>
    */
-  private static final int [] ZZ_ATTRIBUTE = zzUnpackAttribute();
+  static final int [] ZZ_ATTRIBUTE = zzUnpackAttribute();
 
   private static final String ZZ_ATTRIBUTE_PACKED_0 =
     "\1\0\1\11\11\1\1\11\5\1\1\11\2\0\1\11"+
@@ -405,6 +405,8 @@ public class Lexer {
   private int zzFinalHighSurrogate = 0;
 
   /* user code: */
+private int symbol = -1;
+
 public int getLine(){
 	return yyline;
 }
@@ -413,6 +415,14 @@ public int getColumn(){
 	return yycolumn;
 }
 
+public int symbol(){
+	return symbol;
+}
+
+public void appendText(StringBuilder text){
+	text.append(zzBuffer, zzStartRead, zzMarkedPos-zzStartRead);
+}
+
 
   /**
    * Creates a new scanner
@@ -640,10 +650,10 @@ public int getColumn(){
    * Resumes scanning until the next regular expression is matched,
    * the end of input is encountered or an I/O-Error occurs.
    *
-   * @return      the next token
+   * @return      the kind of the next token
    * @exception   java.io.IOException  if any I/O-Error occurs
    */
-  public Yytoken yylex() throws java.io.IOException {
+  public int yylex() throws java.io.IOException {
     int zzInput;
     int zzAction;
 
@@ -779,23 +789,23 @@ public int getColumn(){
 
       switch (zzAction < 0 ? zzAction : ZZ_ACTION[zzAction]) {
         case 1: 
-          { return new Yytoken(Parser.ERR, yytext());
+          { return Parser.ERR;
           }
         case 13: break;
         case 2: 
-          { return new Yytoken(Parser.LITERAL, yytext());
+          { return Parser.LITERAL;
           }
         case 14: break;
         case 3: 
-          { return new Yytoken(Parser.NAME,yytext());
+          { symbol = Symbols.intern(zzBuffer, zzStartRead, zzMarkedPos-zzStartRead).id; return Parser.NAME;
           }
         case 15: break;
         case 4: 
-          { return new Yytoken(Parser.OPERATOR, yytext());
+          { symbol = Symbols.intern(zzBuffer, zzStartRead, zzMarkedPos-zzStartRead).id; return Parser.OPERATOR;
           }
         case 16: break;
         case 5: 
-          { return new Yytoken(yycharat(0));
+          { return yycharat(0);
           }
         case 17: break;
         case 6: 
@@ -803,33 +813,33 @@ public int getColumn(){
           }
         case 18: break;
         case 7: 
-          { return new Yytoken(Parser.IF, yytext());
+          { return Parser.IF;
           }
         case 19: break;
         case 8: 
-          { return new Yytoken(Parser.VAR, yytext());
+          { return Parser.VAR;
           }
         case 20: break;
         case 9: 
-          { return new Yytoken(Parser.ELSE, yytext());
+          { return Parser.ELSE;
           }
         case 21: break;
         case 10: 
-          { return new Yytoken(Parser.ELIF, yytext());
+          { return Parser.ELIF;
           }
         case 22: break;
         case 11: 
-          { return new Yytoken(Parser.WHILE, yytext());
+          { return Parser.WHILE;
           }
         case 23: break;
         case 12: 
-          { return new Yytoken(Parser.RETURN, yytext());
+          { return Parser.RETURN;
           }
         case 24: break;
         default: 
           if (zzInput == YYEOF && zzStartRead == zzCurrentPos) {
             zzAtEOF = true;
-            return null;
+            return Parser.EOF;
           } 
           else {
             zzScanError(ZZ_NO_MATCH);
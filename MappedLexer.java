@@ -0,0 +1,284 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * A scanner for large source files, that memory-maps the file and runs the
+ * DFA of the Lexer directly on its UTF-8 bytes.
+ *
+ * The Lexer reads through a Reader, which decodes the file into a char
+ * buffer a chunk at a time. A MappedLexer copies the mapped file a window
+ * at a time into a byte array, as reading a MappedByteBuffer byte by byte
+ * costs more than the decoding it saves, and scans the bytes as they are:
+ * an ASCII byte indexes the character map of the Lexer directly, and the
+ * few longer UTF-8 sequences are decoded where they are scanned. The window
+ * only grows for a token longer than it, so the file is never held on the
+ * heap. Names and operators are looked up in the Symbols by their bytes,
+ * and the text of other tokens is only made when it is asked for.
+ *
+ * The tokens, lines and columns are those of a Lexer reading the same file
+ * as UTF-8, except that each byte of malformed UTF-8 is replaced on its own.
+ */
+public final class MappedLexer implements TokenSource {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+    private static final int REPLACEMENT = 0xFFFD;
+
+    // The actions of Lexer.yylex, then the keywords of actions 7 to 12
+    private static final int ERROR = 1, LITERAL = 2, NAME = 3, OPERATOR = 4, DELIMITER = 5, SKIP = 6;
+    private static final int[] KEYWORDS = {Parser.IF, Parser.VAR, Parser.ELSE, Parser.ELIF, Parser.WHILE, Parser.RETURN};
+
+    private static final int WINDOW_SIZE = 1 << 16;
+    // The longest UTF-8 encoding of a character
+    private static final int MAX_WIDTH = 4;
+
+    // The rest of the file, after the bytes in the window
+    private final MappedByteBuffer mapped;
+    // The window, holding the bytes of the file read so far from the start
+    // of the last token, up to end
+    private byte[] input = new byte[WINDOW_SIZE];
+    private int end = 0;
+    // The start and end of the last token matched
+    private int start, pos;
+    // The position of start, and whether the character before it is '\r'
+    private int line, column;
+    private boolean afterCR;
+    // The symbol of the last token, if it is a name or an operator
+    private int symbol = -1;
+    // Whether the last token is ASCII without line breaks, so it is on one
+    // line and its text is its bytes
+    private boolean plain = true;
+    // The number of bytes of the character last decoded
+    private int width;
+
+    private MappedLexer(MappedByteBuffer mapped){
+        this.mapped = mapped;
+    }
+
+    // Before: file is a source file smaller than 2GB
+    // After:  returns a MappedLexer positioned at the start of file
+    public static MappedLexer open(Path file) throws IOException{
+        try(FileChannel channel = FileChannel.open(file)){
+            return new MappedLexer(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    // After: the bytes from start on have been moved to the front of the
+    //        window and more of the file read in after them, the window
+    //        grown if they filled it. Returns how far the bytes were moved,
+    //        -1 if the whole file has been read.
+    private int refill(){
+        if(!mapped.hasRemaining()) return -1;
+        int shift = start;
+        if(shift > 0){
+            System.arraycopy(input, shift, input, 0, end-shift);
+            end -= shift;
+            start = 0;
+            pos -= shift;
+        }
+        if(end == input.length) input = Arrays.copyOf(input, 2*input.length);
+        int n = Math.min(input.length-end, mapped.remaining());
+        mapped.get(input, end, n);
+        end += n;
+        return shift;
+    }
+
+    public int getLine(){
+        return line;
+    }
+
+    public int getColumn(){
+        return column;
+    }
+
+    public int symbol(){
+        return symbol;
+    }
+
+    public void appendText(StringBuilder text){
+        if(plain){
+            for(int i=start; i<pos; i++) text.append((char)input[i]);
+        } else {
+            text.append(text(start, pos));
+        }
+    }
+
+    public int yylex(){
+        char[] cmap = Lexer.ZZ_CMAP;
+        int[] trans = Lexer.ZZ_TRANS;
+        int[] rowMap = Lexer.ZZ_ROWMAP;
+        int[] attributes = Lexer.ZZ_ATTRIBUTE;
+        while(true){
+            if(plain){
+                column += pos-start;
+                if(pos > start) afterCR = false;
+            } else {
+                count(start, pos);
+            }
+            start = pos;
+            if(start == end && refill() < 0) return Parser.EOF;
+
+            // Find the longest match, as the Lexer does
+            int state = Lexer.ZZ_LEXSTATE[Lexer.YYINITIAL];
+            int action = (attributes[state] & 1) == 1 ? state : -1;
+            int p = start, marked = start;
+            // The first byte scanned that is not plain, if any
+            int special = Integer.MAX_VALUE;
+            while(true){
+                if(end-p < MAX_WIDTH){
+                    // Make sure a whole character is in the window
+                    int shift = refill();
+                    if(shift > 0){
+                        p -= shift;
+                        marked -= shift;
+                        if(special != Integer.MAX_VALUE) special -= shift;
+                    }
+                    if(p == end) break;
+                }
+                int c = input[p];
+                if(c > '\r'){
+                    p++;
+                } else {
+                    if(p < special) special = p;
+                    if(c >= 0){
+                        p++;
+                    } else {
+                        c = decode(p);
+                        p += width;
+                    }
+                }
+                int next = trans[rowMap[state]+cmap[c]];
+                if(next == -1) break;
+                state = next;
+                int attribute = attributes[state];
+                if((attribute & 1) == 1){
+                    action = state;
+                    marked = p;
+                    if((attribute & 8) == 8) break;
+                }
+            }
+            if(action < 0) throw new Error("Error: could not match input");
+            pos = marked;
+            plain = special >= marked;
+
+            action = Lexer.ZZ_ACTION[action];
+            switch(action){
+                case ERROR:
+                    return Parser.ERR;
+                case LITERAL:
+                    return Parser.LITERAL;
+                case NAME:
+                    symbol = symbol(start, pos);
+                    return Parser.NAME;
+                case OPERATOR:
+                    symbol = symbol(start, pos);
+                    return Parser.OPERATOR;
+                case DELIMITER:
+                    int c = input[start];
+                    return c >= 0 ? c : (char)decode(start);
+                case SKIP:
+                    break;
+                default:
+                    return KEYWORDS[action-7];
+            }
+        }
+    }
+
+    // After: line and column have been moved over the text from from to to,
+    //        counting line breaks the way the Lexer does
+    private void count(int from, int to){
+        int p = from;
+        while(p < to){
+            int c = input[p];
+            if(c >= 0){
+                p++;
+            } else {
+                c = decode(p);
+                p += width;
+            }
+            switch(c){
+                case '\u000B':
+                case '\u000C':
+                case 0x85:
+                case 0x2028:
+                case 0x2029:
+                case '\r':
+                    line++;
+                    column = 0;
+                    break;
+                case '\n':
+                    // "\r\n" is one line break
+                    if(!afterCR){
+                        line++;
+                        column = 0;
+                    }
+                    break;
+                default:
+                    column += Character.charCount(c);
+            }
+            afterCR = c == '\r';
+        }
+    }
+
+    // Before: the byte at p is not ASCII
+    // After:  returns the character encoded at p, and width is the number of
+    //         bytes encoding it. If they are not well-formed UTF-8 the
+    //         character is REPLACEMENT and width is 1.
+    private int decode(int p){
+        int b = input[p] & 0xFF;
+        int n, c, min;
+        if(b >= 0xC2 && b <= 0xDF){
+            n = 2;
+            c = b & 0x1F;
+            min = 0x80;
+        } else if(b >= 0xE0 && b <= 0xEF){
+            n = 3;
+            c = b & 0x0F;
+            min = 0x800;
+        } else if(b >= 0xF0 && b <= 0xF4){
+            n = 4;
+            c = b & 0x07;
+            min = 0x10000;
+        } else {
+            width = 1;
+            return REPLACEMENT;
+        }
+        if(p+n > end){
+            width = 1;
+            return REPLACEMENT;
+        }
+        for(int i=1; i<n; i++){
+            int next = input[p+i];
+            if((next & 0xC0) != 0x80){
+                width = 1;
+                return REPLACEMENT;
+            }
+            c = (c << 6) | (next & 0x3F);
+        }
+        if(c < min || c > Character.MAX_CODE_POINT || (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)){
+            width = 1;
+            return REPLACEMENT;
+        }
+        width = n;
+        return c;
+    }
+
+    // Returns the symbol of the last token, the input from from to to
+    private int symbol(int from, int to){
+        return (plain ? Symbols.intern(input, from, to-from) : Symbols.intern(text(from, to))).id;
+    }
+
+    // Returns the text of the last token, the input from from to to
+    private String text(int from, int to){
+        if(!plain){
+            for(int i=from; i<to; i++){
+                if(input[i] < 0) return new String(input, from, to-from, UTF8);
+            }
+        }
+        return new String(input, from, to-from, LATIN1);
+    }
+}
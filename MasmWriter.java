@@ -0,0 +1,138 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+/**
+ * Writes a morpho assembly program one function at a time.
+ *
+ * Each function is rendered into a reused text buffer, encoded as UTF-8
+ * into a fixed size byte buffer and written to a file channel, so nothing
+ * but the function currently being written is held in memory. The output
+ * goes to a temporary file of its own next to the target which replaces the
+ * target when the writer is closed, or is deleted if the writer is aborted,
+ * so a failed compilation leaves no partial .masm file behind, and writers
+ * of the same target at the same time leave one of their files whole.
+ */
+public class MasmWriter implements ProgramWriter {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final String NL = System.lineSeparator();
+
+    private final Path target;
+    private final Path temp;
+    private final FileChannel channel;
+    private final CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder();
+    private final ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final StringBuilder text = new StringBuilder();
+    // The number of labels used by the functions written so far
+    private int labelBase = 0;
+
+    // Before: name is the name of the program without an extension
+    // After:  the header of the morpho program <name>.mexe has been written
+    public MasmWriter(Path target, String name) throws IOException{
+        this.target = target.toAbsolutePath();
+        this.temp = createTemp(this.target);
+        channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+        appendHeader(text, name);
+        flushText();
+    }
+
+    // After: returns a new empty temporary file next to target, of its own
+    //        so compilations of the same target at the same time do not
+    //        write into each other's. It has the permissions of target if
+    //        that exists, and is readable by all otherwise, as the file it
+    //        replaces target with would be.
+    static Path createTemp(Path target) throws IOException{
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try{
+            Set<PosixFilePermission> permissions = Files.exists(target)
+                ? Files.getPosixFilePermissions(target)
+                : PosixFilePermissions.fromString("rw-r--r--");
+            Files.setPosixFilePermissions(temp, permissions);
+        } catch (UnsupportedOperationException e){
+            // Not a POSIX file system, the temporary file is not restricted
+        }
+        return temp;
+    }
+
+    // After: the header of the morpho program <name>.mexe has been appended
+    //        to text
+    static void appendHeader(StringBuilder text, String name){
+        text.append('"').append(name).append(".mexe\" = main in").append(NL);
+        text.append("!{{").append(NL);
+    }
+
+    // After: the morpho assembly code of f, with its labels numbered after
+    //        labelBase, has been appended to text
+    static void appendFunction(StringBuilder text, FunctionCode f, int labelBase){
+        text.append("#\"").append(f.name).append("[f").append(f.numArgs).append("]\" =").append(NL);
+        text.append('[').append(NL);
+        for(Instruction insn : f.code){
+            insn.render(text, labelBase);
+            text.append(NL);
+        }
+        text.append("];").append(NL);
+    }
+
+    // After: the end of a morpho program has been appended to text
+    static void appendFooter(StringBuilder text){
+        text.append("}}*BASIS;").append(NL);
+    }
+
+    // After: the morpho assembly code of f has been written, with its labels
+    //        numbered after those of the functions written before it
+    public void write(FunctionCode f) throws IOException{
+        appendFunction(text, f, labelBase);
+        labelBase += f.numLabels;
+        flushText();
+    }
+
+    public int labelBase(){
+        return labelBase;
+    }
+
+    // After: the end of the program has been written and the output file is complete
+    public void close() throws IOException{
+        appendFooter(text);
+        flushText();
+        drain();
+        channel.close();
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // After: the output file has been discarded and the target is unchanged
+    public void abort() throws IOException{
+        channel.close();
+        Files.deleteIfExists(temp);
+    }
+
+    // Encode the text buffer, writing to the channel whenever the byte buffer is full
+    private void flushText() throws IOException{
+        CharBuffer chars = CharBuffer.wrap(text);
+        CoderResult result;
+        do{
+            result = encoder.encode(chars, bytes, true);
+            if(result.isError()) result.throwException();
+            if(result.isOverflow()) drain();
+        } while(result.isOverflow());
+        encoder.reset();
+        text.setLength(0);
+    }
+
+    private void drain() throws IOException{
+        bytes.flip();
+        while(bytes.hasRemaining()) channel.write(bytes);
+        bytes.clear();
+    }
+}
@@ -0,0 +1,255 @@
+import is.hi.cs.morpho.Builtins;
+import is.hi.cs.morpho.Module;
+import is.hi.cs.morpho.Morpho;
+import is.hi.cs.morpho.Operation;
+import is.hi.cs.morpho.Operations;
+import is.hi.cs.morpho.Saver;
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a morpho executable one function at a time, without going through
+ * morpho assembly text.
+ *
+ * Each function is added to a morpho Module as it is written, as the
+ * operation objects of morpho.jar that the morpho assembler would build from
+ * its assembly code. When the writer is closed the module is linked the way
+ * the assembler links a program "<name>.mexe" = main in !{{...}}*BASIS: with
+ * the morpho basis and a start that calls main and exits. The linked code is
+ * saved in the format the morpho VM loads, to a temporary file next to the
+ * target which replaces the target when it is complete, as with MasmWriter.
+ */
+public class MexeWriter implements ProgramWriter {
+
+    // The magic number of an executable, a module has one less
+    private static final int MAGIC = Module.MAGIC+1;
+    // Each operation saved is either new or equal to an earlier one, which
+    // is saved as its index instead
+    private static final byte NEW_OPERATION = -128;
+    private static final byte SAME_OPERATION = -127;
+    // A call to offset BUILTIN-n calls the builtin function n of the VM
+    private static final int BUILTIN = -1000000000;
+
+    private final Path target;
+    private final Path temp;
+    // The name of the source file, for the debugging information of the VM
+    private final String sourceName;
+    // Creating the first Module registers the operations of the VM
+    private final Module module = new Module();
+    // The number of labels used by the functions written so far
+    private int labelBase = 0;
+
+    // Before: sourceName is the name of the file the program is compiled from
+    public MexeWriter(Path target, String sourceName) throws IOException{
+        this.target = target.toAbsolutePath();
+        this.temp = MasmWriter.createTemp(this.target);
+        this.sourceName = sourceName;
+    }
+
+    // After: the operations of f have been added to the module, with its
+    //        labels numbered after those of the functions written before it
+    public void write(FunctionCode f){
+        String function = f.name+"[f"+f.numArgs+"]";
+        module.addFunctionExport(function);
+        for(Instruction insn : f.code){
+            if(insn.op == Instruction.Op.LABEL){
+                module.addLabel("_"+(labelBase+insn.n));
+                continue;
+            }
+            module.addOperation(operation(insn));
+            // References are to an argument of the operation just added
+            switch(insn.op){
+                case CALL:
+                case CALLR:
+                    module.addFunctionImport(insn.s+"[f"+insn.n+"]", 0);
+                    break;
+                case GO:
+                case GOFALSE:
+                case GOTRUE:
+                    module.addLabelReference("_"+(labelBase+insn.n), 0);
+                    break;
+                default:
+                    break;
+            }
+            module.setDebugInfo(0, 0, sourceName, function);
+        }
+        labelBase += f.numLabels;
+    }
+
+    public int labelBase(){
+        return labelBase;
+    }
+
+    // After: the program has been linked and saved to the target, or a
+    //        CompileError has been thrown if it calls a function that is
+    //        neither in the program nor in the morpho basis
+    public void close() throws IOException{
+        Module exe;
+        try{
+            module.close();
+            Module program = module.iterateModule().importModule(Morpho.getBasis());
+            Module start = new Module();
+            start.addOperation(operation("Call", 0, 0, 0));
+            start.addFunctionImport("main[f0]", 0);
+            start.addOperation(operation("MakeVal", 0));
+            start.addOperation(operation("CallR", BUILTIN-Builtins.EXIT, 1, 0));
+            start.close();
+            exe = start.importModule(program);
+        } catch(Exception e){
+            throw new IOException("Could not link the program", e);
+        }
+        Object[] missing = exe.getImportedFunctions();
+        if(missing.length > 0){
+            Arrays.sort(missing);
+            ArrayList<String> errors = new ArrayList<>();
+            for(Object name : missing) errors.add(undefined((String)name));
+            throw new CompileError(errors);
+        }
+        try{
+            save(exe);
+        } catch(IOException e){
+            throw e;
+        } catch(Exception e){
+            throw new IOException("Could not save the program", e);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // After: the output file has been discarded and the target is unchanged
+    public void abort() throws IOException{
+        Files.deleteIfExists(temp);
+    }
+
+    // After: the code and debugging information of exe have been saved to
+    //        the temporary file, starting at its first operation
+    private void save(Module exe) throws Exception{
+        Operation[] code = exe.getCode();
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(Files.newOutputStream(temp)), 1 << 16))){
+            Saver saver = new Saver(out);
+            saver.saveInt(MAGIC);
+            saver.saveString(Module.TYPE);
+            saver.saveInt(Module.MAJORVERSION);
+            saver.saveInt(Module.MINORVERSION);
+            saver.saveInt(Module.BUILDVERSION);
+            saver.saveInt(0);
+            saver.saveInt(code.length);
+            HashMap<Operation,Integer> saved = new HashMap<>();
+            for(int i=0; i<code.length; i++){
+                Integer same = saved.putIfAbsent(code[i], i);
+                if(same == null){
+                    saver.saveByte(NEW_OPERATION);
+                    saver.saveOperation(code[i]);
+                } else {
+                    saver.saveByte(SAME_OPERATION);
+                    saver.saveInt(same);
+                }
+            }
+            exe.getDebugInfo().save(saver);
+        }
+    }
+
+    // Returns the error for a call to name, a function with its number of
+    // arguments as in "f[f2]", that nothing defines
+    private static String undefined(String name){
+        int bracket = name.lastIndexOf("[f");
+        if(bracket < 0) return "The function "+name+" is not defined.";
+        String numArgs = name.substring(bracket+2, name.length()-1);
+        return "There is no function "+name.substring(0, bracket)+" that takes "+numArgs+" arguments.";
+    }
+
+    // Returns the morpho operation for insn, with zeros where the module
+    // fills in the offsets of functions and labels
+    private static Operation operation(Instruction insn){
+        switch(insn.op){
+            case PUSH:
+            case RETURN:
+            case NOT:
+            case NOTR:
+                return operation(insn.op.name);
+            case MAKEVAL:
+            case MAKEVALP:
+            case MAKEVALR:
+                return operation(insn.op.name, literal(insn.s));
+            case CALL:
+            case CALLR:
+                return operation(insn.op.name, 0, insn.n, 0);
+            case GO:
+            case GOFALSE:
+            case GOTRUE:
+                return operation(insn.op.name, 0, 0);
+            default:
+                return operation(insn.op.name, insn.n);
+        }
+    }
+
+    private static Operation operation(String name, Comparable<?>... args){
+        Operation op;
+        try{
+            op = Operations.createOp(name);
+        } catch(Exception e){
+            throw new Error(e);
+        }
+        for(int i=0; i<args.length; i++) op.setArg(i, args[i]);
+        return op;
+    }
+
+    // Returns the value of a literal as the morpho assembler reads it: ints
+    // are truncated to 32 bits, other numbers are doubles
+    private static Comparable<?> literal(String s){
+        switch(s){
+            case "null":  return null;
+            case "true":  return Boolean.TRUE;
+            case "false": return Boolean.FALSE;
+        }
+        char first = s.charAt(0);
+        if(first == '"') return unescape(s);
+        if(first == '\'') return unescape(s).charAt(0);
+        if(s.indexOf('.') >= 0) return Double.valueOf(s);
+        return new BigInteger(s).intValue();
+    }
+
+    // Returns the characters between the quotes of a string or char
+    // literal, with escapes replaced by the characters they stand for
+    private static String unescape(String s){
+        StringBuilder sb = new StringBuilder(s.length());
+        int end = s.length()-1;
+        for(int i=1; i<end; i++){
+            char c = s.charAt(i);
+            if(c != '\\'){
+                sb.append(c);
+                continue;
+            }
+            c = s.charAt(++i);
+            switch(c){
+                case 'b': sb.append('\b'); break;
+                case 't': sb.append('\t'); break;
+                case 'n': sb.append('\n'); break;
+                case 'f': sb.append('\f'); break;
+                case 'r': sb.append('\r'); break;
+                default:
+                    if(c < '0' || c > '7'){
+                        sb.append(c);
+                        break;
+                    }
+                    // Up to three octal digits, the first of three at most 3
+                    int max = c <= '3' ? 3 : 2;
+                    int value = 0;
+                    int j = i;
+                    while(j < end && j-i < max && s.charAt(j) >= '0' && s.charAt(j) <= '7'){
+                        value = 8*value + s.charAt(j++)-'0';
+                    }
+                    sb.append((char)value);
+                    i = j-1;
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+}
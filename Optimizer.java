@@ -0,0 +1,260 @@
+/**
+ * Optimization pass over the intermediate code, run between the Parser and
+ * the Compiler when the -O flag is given. An Optimizer must only be used by
+ * one thread at a time.
+ *
+ * Folds operators with literal operands into a single literal and
+ * propagates literals that are assigned exactly once to a local variable.
+ * Only operators whose morpho semantics are known exactly are folded:
+ * integer + - * / % (with 32 bit wraparound, as in the morpho VM), integer
+ * comparisons, ++ on two string literals and unary - and ! on literals.
+ */
+public class Optimizer {
+
+    // Literals known to hold for each variable of the function being
+    // optimized, null for unknown.
+    private Ast.Literal[] known;
+
+    // Before: f is the intermediate code of a function
+    // After:  returns equivalent intermediate code with constants folded
+    public Ast.Function optimize(Ast.Function f){
+        int[] assignments = new int[f.numArgs+f.numVars];
+        for(Ast.Expr e : f.body) countAssignments(e, assignments);
+
+        known = new Ast.Literal[assignments.length];
+        Ast.Expr[] body = new Ast.Expr[f.body.length];
+        for(int i=0; i<body.length; i++){
+            body[i] = foldExpression(f.body[i]);
+            // A local assigned a literal exactly once, at the top level of
+            // the function, has that value in every later statement.
+            if(body[i].operands.length == 1 && body[i].operands[0].type == Compiler.CodeType.ASSIGN){
+                Ast.Assign assign = (Ast.Assign) body[i].operands[0];
+                Ast.Literal value = literalOf(assign.value);
+                if(value != null && assign.var >= f.numArgs && assignments[assign.var] == 1){
+                    known[assign.var] = value;
+                }
+            }
+        }
+        known = null;
+        return new Ast.Function(f.name, f.numArgs, f.numVars, body);
+    }
+
+    // ASSIGNMENT COUNTING:
+
+    private static void countAssignments(Ast.Expr e, int[] counts){
+        for(Ast.Node node : e.operands) countAssignments(node, counts);
+    }
+
+    private static void countAssignments(Ast.Expr[] body, int[] counts){
+        for(Ast.Expr e : body) countAssignments(e, counts);
+    }
+
+    private static void countAssignments(Ast.Node node, int[] counts){
+        switch(node.type){
+            case ASSIGN:
+                counts[((Ast.Assign)node).var]++;
+                countAssignments(((Ast.Assign)node).value, counts);
+                return;
+            case CALL:
+                countAssignments(((Ast.Call)node).args, counts);
+                return;
+            case RETURN:
+                countAssignments(((Ast.Return)node).value, counts);
+                return;
+            case UNARY:
+                countAssignments(((Ast.Unary)node).operand, counts);
+                return;
+            case IF: {
+                Ast.If ifNode = (Ast.If)node;
+                countAssignments(ifNode.conds, counts);
+                for(Ast.Expr[] body : ifNode.bodies) countAssignments(body, counts);
+                if(ifNode.elseBody != null) countAssignments(ifNode.elseBody, counts);
+                return;
+            }
+            case WHILE:
+                countAssignments(((Ast.While)node).cond, counts);
+                countAssignments(((Ast.While)node).body, counts);
+                return;
+            case PRIORITY:
+                countAssignments(((Ast.Priority)node).inner, counts);
+                return;
+            default:
+                return;
+        }
+    }
+
+    // FOLDING:
+
+    // Before: e is the intermediate code of an expression
+    // After:  returns e with its small expressions folded, and the leading
+    //         operators folded as long as both their operands are literals
+    private Ast.Expr foldExpression(Ast.Expr e){
+        int count = e.operands.length;
+        Ast.Node[] operands = new Ast.Node[count];
+        for(int i=0; i<count; i++) operands[i] = foldSmallExpression(e.operands[i]);
+
+        // Operators are applied left to right, so only a prefix of
+        // literal operands can be folded.
+        Ast.Node acc = operands[0];
+        int next = 1;
+        while(next < count && acc.type == Compiler.CodeType.LITERAL && operands[next].type == Compiler.CodeType.LITERAL){
+            Ast.Literal folded = foldBinary(e.operators[next-1], (Ast.Literal)acc, (Ast.Literal)operands[next]);
+            if(folded == null) break;
+            acc = folded;
+            next++;
+        }
+        if(next == 1 && !changed(e.operands, operands)) return e;
+
+        Ast.Node[] restOperands = new Ast.Node[count-next+1];
+        String[] restOperators = new String[count-next];
+        restOperands[0] = acc;
+        for(int i=next; i<count; i++){
+            restOperands[i-next+1] = operands[i];
+            restOperators[i-next] = e.operators[i-1];
+        }
+        return new Ast.Expr(restOperands, restOperators);
+    }
+
+    private Ast.Expr[] foldExpressions(Ast.Expr[] es){
+        Ast.Expr[] result = new Ast.Expr[es.length];
+        for(int i=0; i<es.length; i++) result[i] = foldExpression(es[i]);
+        return result;
+    }
+
+    private static boolean changed(Object[] before, Object[] after){
+        for(int i=0; i<before.length; i++){
+            if(before[i] != after[i]) return true;
+        }
+        return false;
+    }
+
+    // Before: node is the intermediate code of a small expression
+    // After:  returns node with its constant parts folded
+    private Ast.Node foldSmallExpression(Ast.Node node){
+        switch(node.type){
+            case NAME: {
+                Ast.Literal value = known[((Ast.Name)node).var];
+                return value != null ? value : node;
+            }
+            case ASSIGN: {
+                Ast.Assign assign = (Ast.Assign)node;
+                return new Ast.Assign(assign.var, foldExpression(assign.value));
+            }
+            case CALL: {
+                Ast.Call call = (Ast.Call)node;
+                return new Ast.Call(call.name, foldExpressions(call.args));
+            }
+            case RETURN:
+                return new Ast.Return(foldExpression(((Ast.Return)node).value));
+            case UNARY: {
+                Ast.Unary unary = (Ast.Unary)node;
+                Ast.Node operand = foldSmallExpression(unary.operand);
+                if(operand.type == Compiler.CodeType.LITERAL){
+                    Ast.Literal folded = foldUnary(unary.operator, (Ast.Literal)operand);
+                    if(folded != null) return folded;
+                }
+                return new Ast.Unary(unary.operator, operand);
+            }
+            case IF: {
+                Ast.If ifNode = (Ast.If)node;
+                Ast.Expr[][] bodies = new Ast.Expr[ifNode.bodies.length][];
+                for(int i=0; i<bodies.length; i++) bodies[i] = foldExpressions(ifNode.bodies[i]);
+                Ast.Expr[] elseBody = ifNode.elseBody == null ? null : foldExpressions(ifNode.elseBody);
+                return new Ast.If(foldExpressions(ifNode.conds), bodies, elseBody);
+            }
+            case WHILE: {
+                Ast.While whileNode = (Ast.While)node;
+                return new Ast.While(foldExpression(whileNode.cond), foldExpressions(whileNode.body));
+            }
+            case PRIORITY: {
+                Ast.Expr inner = foldExpression(((Ast.Priority)node).inner);
+                Ast.Literal value = literalOf(inner);
+                return value != null ? value : new Ast.Priority(inner);
+            }
+            default:
+                return node;
+        }
+    }
+
+    // Returns the literal e consists of, or null if it is not a single literal
+    private static Ast.Literal literalOf(Ast.Expr e){
+        if(e.operands.length == 1 && e.operands[0].type == Compiler.CodeType.LITERAL){
+            return (Ast.Literal) e.operands[0];
+        }
+        return null;
+    }
+
+    // LITERAL ARITHMETIC:
+
+    private static final Ast.Literal TRUE = new Ast.Literal("true");
+    private static final Ast.Literal FALSE = new Ast.Literal("false");
+
+    private static Ast.Literal bool(boolean b){
+        return b ? TRUE : FALSE;
+    }
+
+    // Returns the value of an integer literal that fits in an int, or null
+    private static Integer intValue(Ast.Literal l){
+        String s = l.value;
+        int start = s.startsWith("-") ? 1 : 0;
+        if(start == s.length()) return null;
+        for(int i=start; i<s.length(); i++){
+            char c = s.charAt(i);
+            if(c<'0' || c>'9') return null;
+        }
+        try{
+            return Integer.parseInt(s);
+        } catch (NumberFormatException e){
+            return null;
+        }
+    }
+
+    private static boolean isString(Ast.Literal l){
+        return l.value.length()>=2 && l.value.startsWith("\"") && l.value.endsWith("\"");
+    }
+
+    // Before: a and b are literals
+    // After:  returns the literal value of 'a op b' or null if it
+    //         can not be computed at compile time
+    private static Ast.Literal foldBinary(String op, Ast.Literal a, Ast.Literal b){
+        if(op.equals("++")){
+            if(!isString(a) || !isString(b)) return null;
+            return new Ast.Literal(a.value.substring(0, a.value.length()-1)+b.value.substring(1));
+        }
+        Integer x = intValue(a);
+        Integer y = intValue(b);
+        if(x == null || y == null) return null;
+        int i = x, j = y;
+        switch(op){
+            case "+":  return new Ast.Literal(Integer.toString(i+j));
+            case "-":  return new Ast.Literal(Integer.toString(i-j));
+            case "*":  return new Ast.Literal(Integer.toString(i*j));
+            case "/":  return j==0 ? null : new Ast.Literal(Integer.toString(i/j));
+            case "%":  return j==0 ? null : new Ast.Literal(Integer.toString(i%j));
+            case "<":  return bool(i<j);
+            case "<=": return bool(i<=j);
+            case ">":  return bool(i>j);
+            case ">=": return bool(i>=j);
+            case "==": return bool(i==j);
+            case "!=": return bool(i!=j);
+            default:   return null;
+        }
+    }
+
+    // Before: a is a literal
+    // After:  returns the literal value of 'op a' or null if it can not
+    //         be computed at compile time
+    private static Ast.Literal foldUnary(String op, Ast.Literal a){
+        if(op.equals("!")){
+            if(a.value.equals("true")) return FALSE;
+            if(a.value.equals("false") || a.value.equals("null")) return TRUE;
+            return null;
+        }
+        if(op.equals("-")){
+            Integer x = intValue(a);
+            if(x == null) return null;
+            return new Ast.Literal(Integer.toString(-x));
+        }
+        return null;
+    }
+}
@@ -1,6 +1,6 @@
 import java.io.*;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 
 /**
  * Created by leo on 17.2.2016.
@@ -9,11 +9,29 @@ import java.util.HashMap;
  */
 public class Parser {
 
-    private static Lexer lexer;
-    private static Yytoken next_token;
-    private static boolean verbose;
-    private static HashMap<String, Integer> variables;
-    private static int nextVarNum;
+    // The lexer to read the program from a function at a time, null when
+    // parsing the tokens of a single function
+    private TokenSource lexer;
+    // The tokens being parsed, and the index of the next token in them
+    private TokenBuffer tokens;
+    private int nextToken = -1;
+    // The position of the next token, and of the last name read
+    private int line, column;
+    private int nameLine, nameColumn;
+    // The trace to write the parse to, null if not tracing
+    private Trace trace;
+    // The numbers of the variables of the function being parsed, by symbol
+    private final IntMap variables = new IntMap();
+    private int nextVarNum;
+    private boolean parsedFunction;
+    // The errors found so far, in source order. A syntax error is recovered
+    // from by skipping to the end of the expression or function it is in,
+    // and the errors are thrown together when the program has been parsed.
+    private final ArrayList<String> errors = new ArrayList<>();
+    // The number of tokens consumed, and that number when the last recovery
+    // stopped in front of a token instead of after a ';'. An error at that
+    // token follows from the one recovered from and is not reported.
+    private long consumed = 0, recovered = -1;
     
     static public final int NAME     = 0;
     static public final int VAR      = 1;
@@ -28,26 +46,93 @@ public class Parser {
     static public final int ERR      = -1;
     static public final int EOF      = -2;
     
-    public Parser(Lexer l, boolean v){
+    public Parser(TokenSource l, Trace trace){
         lexer = l;
-        verbose = v;
-        advance();
+        tokens = new TokenBuffer();
+        this.trace = trace;
+        parsedFunction = false;
+        start();
     }
-    
-    public static void advance(){    
+
+    // Before: tokens are the tokens of a function, as read by TokenBuffer.scanFunction
+    // After:  the parser parses tokens, nextFunction() returns that function
+    public Parser(TokenBuffer tokens, Trace trace){
+        this.tokens = tokens;
+        this.trace = trace;
+        parsedFunction = false;
+        start();
+    }
+
+    // After: the parser is at the first token
+    private void start(){
         try{
-            next_token = lexer.yylex();
+            advance();
+        } catch(CompileError e){
+            error(e);
+            recovered = consumed;
         }
-        catch (IOException e){
-            throw new Error(e);
+    }
+    
+    public void advance(){    
+        skip();
+        if( look(ERR) ){
+            throw new CompileError("Unexpected symbol : "+tokens.lexeme(nextToken)+" (line: "+(line+1)+", column: "+column+")");
         }
-        if( next_token == null ){
-            next_token = new Yytoken(EOF,"EOF");
+    }
+
+    // After: the parser is at the token after the one it was at, which may
+    //        be an error
+    private void skip(){
+        nextToken++;
+        consumed++;
+        if(nextToken == tokens.size() && lexer != null && !tokens.atEnd()){
+            // The function read last has been parsed, read the next one
+            tokens.scan(lexer);
+            nextToken = 0;
         }
-        if( next_token.number == ERR ){
-            System.err.println("Unexpected symbol : "+next_token+" (line: "+(lexer.getLine()+1)+", column: "+lexer.getColumn()+")");
-            System.exit(1);
+        line = tokens.line(nextToken);
+        column = tokens.column(nextToken);
+    }
+
+    // ERROR RECOVERY FUNCTIONS:
+
+    // After: e has been added to the errors, unless it follows from an
+    //        error that has been recovered from
+    private void error(CompileError e){
+        if(consumed != recovered) errors.add(e.getMessage());
+    }
+
+    // Before: e was thrown parsing an expression of a body, whose children
+    //         were pushed above mark
+    // After:  e has been reported, and the expression has been skipped up to
+    //         and including its ';', or up to the '}' or end of file that
+    //         ends the body if it comes first
+    private void recover(CompileError e, int mark){
+        error(e);
+        popTo(mark);
+        int depth = 0;
+        while(!look(EOF)){
+            if(look('{')){
+                depth++;
+            } else if(look('}')){
+                if(depth == 0) break;
+                depth--;
+            } else if(look(';') && depth == 0){
+                skip();
+                recovered = -1;
+                return;
+            }
+            skip();
         }
+        recovered = consumed;
+    }
+
+    // After: the rest of the function being parsed has been skipped, up to
+    //        and including the '}' that ends it. The tokens are read a
+    //        function at a time, so that is the last token read.
+    private void skipFunction(){
+        while(nextToken < tokens.size()-1) skip();
+        if(!look(EOF)) skip();
     }
 
     private static String expectedType(int i){
@@ -81,36 +166,51 @@ public class Parser {
         return expectedType;
     }
     
-    private static void expected( String exp ){
-        System.err.println("Expected "+exp+", found "+next_token.string+" (line: "+(lexer.getLine()+1)+", column: "+lexer.getColumn()+")");
-        System.exit(1);
+    private void expected( String exp ){
+        throw new CompileError("Expected "+exp+", found "+tokens.lexeme(nextToken)+" (line: "+(line+1)+", column: "+column+")");
     }
 
-    private static String expect(int i) {
-        String lexeme = next_token.toString();
+    private void expect(int i) {
         if(!look(i)) {
             String expectedType = expectedType(i);
             expected(expectedType);
         }
         advance();
-        return lexeme;
     }
 
-    private static void expect(char c){
+    // After: returns the symbol of the name that was next
+    private int expectName(){
+        if(!look(NAME)) expected(expectedType(NAME));
+        int symbol = tokens.symbol(nextToken);
+        nameLine = line;
+        nameColumn = column;
+        advance();
+        return symbol;
+    }
+
+    // After: returns the operator that was next
+    private String expectOperator(){
+        if(!look(OPERATOR)) expected(expectedType(OPERATOR));
+        String operator = Symbols.name(tokens.symbol(nextToken));
+        advance();
+        return operator;
+    }
+
+    private void expect(char c){
         expect((int)c);
     }
 
-    private static void expect(String s){
+    private void expect(String s){
         for(char c : s.toCharArray()){
             expect(c);
         }
     }
     
-    private static boolean look(int i){
-        return next_token.number == i;
+    private boolean look(int i){
+        return tokens.kind(nextToken) == i;
     }
     
-    private static boolean look(char c){
+    private boolean look(char c){
         return look((int)c);
     }
 
@@ -122,221 +222,304 @@ public class Parser {
         }
         return false;
     }
-
-    private static void verbose(int indent, String s){
-        if(!verbose) return;
-        String spaces = "";
-        for (int i = 0; i < indent; i++) {
-            spaces += ". ";
-        }
-        System.out.println(spaces+s);
-    }
     
     // VARIABLE STORE FUNCTIONS:
     
-    private static void resetVariableStore(){
-        variables = new HashMap<>();
+    private void resetVariableStore(){
+        variables.clear();
         nextVarNum = 0;
     }
     
-    private static void registerVariable(String varName){
-        if(variables.containsKey(varName)){
-            System.err.println("The variable name "+varName+" is already being used. (line: "+(lexer.getLine()+1)+", column: "+lexer.getColumn()+")");
-            System.exit(1);
+    // Before: symbol is the last name read
+    private void registerVariable(int symbol){
+        if(variables.containsKey(symbol)){
+            errors.add("The variable name "+Symbols.name(symbol)+" is already being used. (line: "+(nameLine+1)+", column: "+nameColumn+")");
+            return;
         }
-        variables.put(varName,nextVarNum++);
+        variables.put(symbol,nextVarNum++);
     }
     
-    private static int getVarNum(String varName){
-        return variables.get(varName);
+    // Before: symbol is the last name read
+    private int getVarNum(int symbol){
+        int var = variables.get(symbol);
+        if(var < 0){
+            errors.add("The variable "+Symbols.name(symbol)+" has not been declared. (line: "+(nameLine+1)+", column: "+nameColumn+")");
+            return 0;
+        }
+        return var;
+    }
+
+    // SCRATCH STACK FUNCTIONS:
+
+    // Children of the nodes currently being built are pushed here and copied
+    // into an exactly sized array once their node is complete, so building
+    // the tree allocates no intermediate lists.
+    private Object[] scratch = new Object[64];
+    private static final Ast.Expr[] NO_ARGS = new Ast.Expr[0];
+    private int scratchTop = 0;
+
+    private void push(Object o){
+        if(scratchTop == scratch.length){
+            scratch = Arrays.copyOf(scratch, scratchTop*2);
+        }
+        scratch[scratchTop++] = o;
+    }
+
+    // Before: mark <= scratchTop
+    // After:  the elements pushed since mark have been popped
+    private void popTo(int mark){
+        Arrays.fill(scratch, mark, scratchTop, null);
+        scratchTop = mark;
+    }
+
+    // Before: mark <= scratchTop and dest.length == scratchTop-mark
+    // After:  the elements pushed since mark have been moved to dest and
+    //         popped off the scratch stack
+    private <T> T[] popInto(int mark, T[] dest){
+        System.arraycopy(scratch, mark, dest, 0, dest.length);
+        popTo(mark);
+        return dest;
     }
 
     // PARSER STARTS HERE:
 
-    public static Object[] program(){return program(0);}
+    public Ast.Program program(){return program(0);}
 
-    private static Object[] program(int level){
-        ArrayList<Object> list = new ArrayList<>();
-        verbose(level, "<program>");
+    private Ast.Program program(int level){
+        int mark = scratchTop;
+        if(trace != null) trace.line(level, "<program>");
         do{
-            list.add(function(level+1));
+            Ast.Function f = function(level+1);
+            if(f != null) push(f);
         }while(!look(EOF));
-        return list.toArray();
+        if(!errors.isEmpty()) throw new CompileError(errors);
+        return new Ast.Program(popInto(mark, new Ast.Function[scratchTop-mark]));
+    }
+
+    // Before: the parser is at the start of a function or at the end of the
+    //         program, which must contain at least one function
+    // After:  returns the next function of the program without errors, null
+    //         at the end. Throws the errors of the program at the end if
+    //         there are any.
+    public Ast.Function nextFunction(){
+        while(!look(EOF) || !parsedFunction){
+            parsedFunction = true;
+            int errorCount = errors.size();
+            Ast.Function f = function(1);
+            if(f != null && errors.size() == errorCount) return f;
+        }
+        if(!errors.isEmpty()) throw new CompileError(errors);
+        return null;
     }
 
-    private static Object[] function(int level){
-        ArrayList<Object> list = new ArrayList<>();
+    // After: returns the function parsed, null if it could not be parsed
+    //        past an error in its head or at its end
+    private Ast.Function function(int level){
         resetVariableStore();
-        
-        verbose(level,"<function>");
-        list.add(expect(NAME));
+        int mark = scratchTop;
+        try{
+            return functionParts(level);
+        } catch(CompileError e){
+            error(e);
+            popTo(mark);
+            skipFunction();
+            return null;
+        }
+    }
+
+    private Ast.Function functionParts(int level){
+        if(trace != null) trace.line(level, "<function>");
+        int name = expectName();
         expect('(');
         int argsCount = 0;
         if(!look(')')){
-            registerVariable(expect(NAME));
+            registerVariable(expectName());
             argsCount++;
             while(look(',')){
                 advance();
-                registerVariable(expect(NAME));
+                registerVariable(expectName());
                 argsCount++;
             }
         }
-        list.add(argsCount);
         expect("){");
         int varCount = 0;
         while(look(VAR)){
-            varCount += decl(level+1);
-            expect(';');
+            try{
+                varCount += decl(level+1);
+                expect(';');
+            } catch(CompileError e){
+                recover(e, scratchTop);
+            }
         }
-        list.add(varCount);
-        do{
-            list.add(expr(level+1));
-            expect(';');
-        }while(!look('}'));
+        int mark = scratchTop;
+        exprs(level+1);
         expect('}');
-        return list.toArray();
+        Ast.Expr[] body = popInto(mark, new Ast.Expr[scratchTop-mark]);
+        return new Ast.Function(name, argsCount, varCount, body);
     }
 
-    private static int decl(int level){
+    private int decl(int level){
         int varCount = 0;
-        verbose(level,"<decl>");
+        if(trace != null) trace.line(level, "<decl>");
         expect(VAR);
-        registerVariable(expect(NAME));
+        registerVariable(expectName());
         varCount++;
         while(look(',')){
             advance();
-            registerVariable(expect(NAME));
+            registerVariable(expectName());
             varCount++;
         }
         return varCount;
     }
     
-    private static Object[] expr(int level){
-        ArrayList<Object> list = new ArrayList<>();
-        verbose(level,"<expr>");
-        list.add(smallExpr(level+1));
+    private Ast.Expr expr(int level){
+        if(trace != null) trace.line(level, "<expr>");
+        Ast.Node first = smallExpr(level+1);
+        // Most expressions are a single small expression
+        if(!look(OPERATOR)) return new Ast.Expr(first);
+        int mark = scratchTop;
+        push(first);
         while(look(OPERATOR)){
-            list.add(expect(OPERATOR));
-            list.add(smallExpr(level+1));
+            push(expectOperator());
+            push(smallExpr(level+1));
         }
-        return list.toArray();
+        // The scratch stack now holds operand (operator operand)...
+        int count = (scratchTop-mark+1)/2;
+        Ast.Node[] operands = new Ast.Node[count];
+        String[] operators = new String[count-1];
+        for(int i=0; i<count; i++){
+            operands[i] = (Ast.Node) scratch[mark+2*i];
+            if(i>0) operators[i-1] = (String) scratch[mark+2*i-1];
+        }
+        popTo(mark);
+        return new Ast.Expr(operands, operators);
     }
 
-    private static Object[] smallExpr(int level){
-        ArrayList<Object> list = new ArrayList<>();
-        verbose(level,"<smallExpr>");
+    private Ast.Node smallExpr(int level){
+        if(trace != null) trace.line(level, "<smallExpr>");
         level++;
         if( look(NAME) ){
-            String name = expect(NAME);
+            int name = expectName();
             if( look('=') ){
-                verbose(level,"<NAME> = <expr>");
+                if(trace != null) trace.line(level, "<NAME> = <expr>");
                 advance();
-                list.add(Compiler.CodeType.ASSIGN);
-                list.add(getVarNum(name));
-                list.add(expr(level+1));
-                return list.toArray();
+                int var = getVarNum(name);
+                return new Ast.Assign(var, expr(level+1));
             }
             if( !look('(') ){
-                verbose(level,"<NAME>");
-                list.add(Compiler.CodeType.NAME);
-                list.add(getVarNum(name));
-                return list.toArray();
+                if(trace != null) trace.line(level, "<NAME>");
+                return new Ast.Name(getVarNum(name));
             }
-            verbose(level,"<NAME>(<expr>...)");
-            list.add(Compiler.CodeType.CALL);
-            list.add(name);
+            if(trace != null) trace.line(level, "<NAME>(<expr>...)");
             advance();
             if( look(')') ){
                 advance();
-                return list.toArray();
+                return new Ast.Call(name, NO_ARGS);
             }
-            list.add(expr(level+1));
+            int mark = scratchTop;
+            push(expr(level+1));
             while( look(',') ){
                 advance();
-                list.add(expr(level+1));
+                push(expr(level+1));
             }
             expect(')');
-            return list.toArray();
+            return new Ast.Call(name, popInto(mark, new Ast.Expr[scratchTop-mark]));
         }
         if( look(RETURN) ){
-            verbose(level,"return <expr>");
-            list.add(Compiler.CodeType.RETURN);
+            if(trace != null) trace.line(level, "return <expr>");
             advance();
-            list.add(expr(level+1));
-            return list.toArray();
+            return new Ast.Return(expr(level+1));
         }
         if( look(OPERATOR) ){
-            verbose(level,"<OPERATOR> <smallExpr>");
-            list.add(Compiler.CodeType.UNARY);
-            list.add(expect(OPERATOR));
-            list.add(smallExpr(level+1));
-            return list.toArray();
+            if(trace != null) trace.line(level, "<OPERATOR> <smallExpr>");
+            String op = expectOperator();
+            return new Ast.Unary(op, smallExpr(level+1));
         }
         if( look(LITERAL) ){
-            verbose(level,"<LITERAL>");
-            list.add(Compiler.CodeType.LITERAL);
-            list.add(next_token.toString());
+            if(trace != null) trace.line(level, "<LITERAL>");
+            String literal = tokens.text(nextToken);
             advance();
-            return list.toArray();
+            return new Ast.Literal(literal);
         }
         if( look('(') ){
-            verbose(level,"(<expr>)");
-            list.add(Compiler.CodeType.PRIORITY);
+            if(trace != null) trace.line(level, "(<expr>)");
             advance();
-            list.add(expr(level+1));
+            Ast.Expr inner = expr(level+1);
             expect(')');
-            return list.toArray();
+            return new Ast.Priority(inner);
         }
         if( look(IF) ){
-            list.add(Compiler.CodeType.IF);
-            verbose(level,"<ifexpr>");
+            if(trace != null) trace.line(level, "<ifexpr>");
+            int mark = scratchTop;
             expect(IF);
             expect('(');
-            list.add(expr(level+1));
+            push(expr(level+1));
             expect(')');
-            list.add(body(level+1));
+            push(body(level+1));
             while( look(ELIF) ){
                 advance();
                 expect('(');
-                list.add(expr(level+1));
+                push(expr(level+1));
                 expect(')');
-                list.add(body(level+1));
+                push(body(level+1));
             }
+            Ast.Expr[] elseBody = null;
             if( look(ELSE) ){
                 advance();
-                list.add(body(level+1));
+                elseBody = body(level+1);
+            }
+            // The scratch stack now holds (cond body)...
+            int count = (scratchTop-mark)/2;
+            Ast.Expr[] conds = new Ast.Expr[count];
+            Ast.Expr[][] bodies = new Ast.Expr[count][];
+            for(int i=0; i<count; i++){
+                conds[i] = (Ast.Expr) scratch[mark+2*i];
+                bodies[i] = (Ast.Expr[]) scratch[mark+2*i+1];
             }
-            return list.toArray();
+            popTo(mark);
+            return new Ast.If(conds, bodies, elseBody);
         }
         if( look(WHILE) ){
-            list.add(Compiler.CodeType.WHILE);
-            verbose(level,"<while>");
+            if(trace != null) trace.line(level, "<while>");
             advance();
             expect('(');
-            list.add(expr(level+1));
+            Ast.Expr cond = expr(level+1);
             expect(')');
-            list.add(body(level+1));
-            return list.toArray();
+            return new Ast.While(cond, body(level+1));
         }
         expected("expression");
         return null;
     }
 
-    private static Object[] body(int level){
-        ArrayList<Object> list = new ArrayList<>();
+    private Ast.Expr[] body(int level){
+        int mark = scratchTop;
         
-        verbose(level, "<body>");
+        if(trace != null) trace.line(level, "<body>");
         expect('{');
-        do{
-            list.add(expr(level+1));
-            expect(';');
-        } while(!look('}'));
-        advance();
+        exprs(level+1);
+        expect('}');
         
-        return list.toArray();
+        return popInto(mark, new Ast.Expr[scratchTop-mark]);
+    }
+
+    // Before: the parser is at the first expression of a body
+    // After:  the expressions of the body have been pushed, up to the '}'
+    //         that ends it, or the end of file. An expression with an error
+    //         has been recovered from and is not pushed.
+    private void exprs(int level){
+        do{
+            int mark = scratchTop;
+            try{
+                push(expr(level));
+                expect(';');
+            } catch(CompileError e){
+                recover(e, mark);
+            }
+        } while(!look('}') && !look(EOF));
     }
 
     public static void main(String[] args) {
+        Lexer lexer = null;
         try {
             lexer = new Lexer(new FileReader(args[0]));
         } catch (FileNotFoundException e) {
@@ -344,14 +527,22 @@ public class Parser {
             System.exit(1);
         }
         
-        verbose = (args.length>1 && args[1].equalsIgnoreCase("-v"));
+        boolean verbose = (args.length>1 && args[1].equalsIgnoreCase("-v"));
         if(args.length>1 && !verbose){
             System.out.println("Invalid option: "+args[1]+"\nUse '-v' for verbose mode.");
         }
-        advance();
-        program();
-        if( next_token.number != EOF ){
-            System.err.println("Expected EOF, found " + next_token+" (line: "+(lexer.getLine()+1)+")");
+        Trace trace = verbose ? new Trace(System.out) : null;
+        Parser parser = new Parser(lexer, trace);
+        try{
+            parser.program();
+        } catch (CompileError e){
+            if(trace != null) trace.flush();
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        if(trace != null) trace.flush();
+        if( !parser.look(EOF) ){
+            System.err.println("Expected EOF, found " + parser.tokens.lexeme(parser.nextToken)+" (line: "+(parser.line+1)+")");
             System.exit(1);
         }
         System.out.println("Program parsed successfully");
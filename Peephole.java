@@ -0,0 +1,252 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Peephole optimizer for the morpho assembly code of a single function.
+ *
+ * Every rule in the rule table is tried at every position of the
+ * instruction list until no rule applies any more.
+ * Removed instructions are left as null holes while a pass is running so
+ * that label positions stay valid, and squeezed out between passes.
+ * Each Peephole counts the instructions each rule removed so they can be
+ * reported with report(), and must only be used by one thread at a time.
+ * A Peephole made from another shares its rule table, which never changes,
+ * so functions can be optimized in parallel, each counting on its own, and
+ * the counts added up with add().
+ */
+public class Peephole {
+
+    // The code a rule is applied to. Holds the position of every label and
+    // the number of jumps to it.
+    static final class Window {
+        private final ArrayList<Instruction> code;
+        // Labels of a function are numbered consecutively from minLab
+        private final int minLab;
+        private final int[] labels;
+        private final int[] refs;
+        // Instructions removed by each rule
+        private final int[] removed;
+        private int rule;
+
+        Window(ArrayList<Instruction> code, int[] removed){
+            this.code = code;
+            this.removed = removed;
+            int min = Integer.MAX_VALUE, max = -1;
+            for(Instruction insn : code){
+                if(insn.op == Instruction.Op.LABEL || insn.op.isJump()){
+                    min = Math.min(min, insn.n);
+                    max = Math.max(max, insn.n);
+                }
+            }
+            minLab = min;
+            labels = new int[max < 0 ? 0 : max-min+1];
+            refs = new int[labels.length];
+            Arrays.fill(labels, -1);
+            for(int i=0; i<code.size(); i++){
+                Instruction insn = code.get(i);
+                if(insn.op == Instruction.Op.LABEL) labels[insn.n-minLab] = i;
+                else if(insn.op.isJump()) refs[insn.n-minLab]++;
+            }
+        }
+
+        Instruction get(int i){
+            return code.get(i);
+        }
+
+        // Returns the position of the next instruction after i, or -1
+        int next(int i){
+            for(i++; i<code.size(); i++){
+                if(code.get(i) != null) return i;
+            }
+            return -1;
+        }
+
+        // Returns the position of the first instruction after i that is not
+        // a label, or -1
+        int nextCode(int i){
+            i = next(i);
+            while(i >= 0 && code.get(i).op == Instruction.Op.LABEL) i = next(i);
+            return i;
+        }
+
+        // Returns the position of the first instruction executed after a
+        // jump to lab, or -1
+        int target(int lab){
+            int pos = labels[lab-minLab];
+            return pos < 0 ? -1 : nextCode(pos);
+        }
+
+        int refs(int lab){
+            return refs[lab-minLab];
+        }
+
+        void remove(int i){
+            Instruction insn = code.get(i);
+            if(insn.op.isJump()) refs[insn.n-minLab]--;
+            code.set(i, null);
+            removed[rule]++;
+        }
+
+        void replace(int i, Instruction insn){
+            Instruction old = code.get(i);
+            if(old.op.isJump()) refs[old.n-minLab]--;
+            if(insn.op.isJump()) refs[insn.n-minLab]++;
+            code.set(i, insn);
+        }
+    }
+
+    // A rewrite rule. apply is called with the position of every
+    // instruction and returns true if it changed the code.
+    public static abstract class Rule {
+        final String name;
+
+        public Rule(String name){
+            this.name = name;
+        }
+
+        abstract boolean apply(Window w, int i);
+    }
+
+    private static final int MAX_PASSES = 16;
+
+    private static final ArrayList<Rule> rules = new ArrayList<>();
+
+    // Rules added after a Peephole has been created are not used by it
+    public static synchronized void addRule(Rule rule){
+        rules.add(rule);
+    }
+
+    private final Rule[] table;
+    private final int[] applied;
+    private final int[] removed;
+
+    public Peephole(){
+        synchronized(Peephole.class){
+            table = rules.toArray(new Rule[0]);
+        }
+        applied = new int[table.length];
+        removed = new int[table.length];
+    }
+
+    // After: this Peephole has the rules of unit, and counts of its own
+    public Peephole(Peephole unit){
+        table = unit.table;
+        applied = new int[table.length];
+        removed = new int[table.length];
+    }
+
+    // Before: other was made from this Peephole, or this from other
+    // After:  the counts of other have been added to this Peephole's
+    public void add(Peephole other){
+        for(int r=0; r<table.length; r++){
+            applied[r] += other.applied[r];
+            removed[r] += other.removed[r];
+        }
+    }
+
+    static {
+        // (Store n) (Fetch n): the value is still in the accumulator
+        addRule(new Rule("store-fetch"){
+            boolean apply(Window w, int i){
+                Instruction insn = w.get(i);
+                int j = w.next(i);
+                if(insn.op != Instruction.Op.STORE || j < 0 || w.get(j).op != Instruction.Op.FETCH || w.get(j).n != insn.n) return false;
+                w.remove(j);
+                return true;
+            }
+        });
+        // (Go _a) to a label that immediately follows it
+        addRule(new Rule("go-next"){
+            boolean apply(Window w, int i){
+                Instruction insn = w.get(i);
+                if(insn.op != Instruction.Op.GO) return false;
+                for(int j=w.next(i); j>=0 && w.get(j).op == Instruction.Op.LABEL; j=w.next(j)){
+                    if(w.get(j).n == insn.n){
+                        w.remove(i);
+                        return true;
+                    }
+                }
+                return false;
+            }
+        });
+        // A jump to (Go _b) jumps to _b, as does a conditional jump to a
+        // jump to _b on the same condition, a (Go) to (Return) returns
+        addRule(new Rule("jump-to-jump"){
+            boolean apply(Window w, int i){
+                Instruction insn = w.get(i);
+                if(!insn.op.isJump()) return false;
+                int t = w.target(insn.n);
+                if(t < 0) return false;
+                Instruction target = w.get(t);
+                if((target.op == Instruction.Op.GO || target.op == insn.op) && target.n != insn.n){
+                    w.replace(i, Instruction.jump(insn.op, target.n));
+                    return true;
+                }
+                if(insn.op == Instruction.Op.GO && target.op == Instruction.Op.RETURN){
+                    w.replace(i, Instruction.RETURN);
+                    return true;
+                }
+                return false;
+            }
+        });
+        // Code after (Go) or (Return) up to the next label is never executed
+        addRule(new Rule("unreachable"){
+            boolean apply(Window w, int i){
+                Instruction insn = w.get(i);
+                if(insn.op != Instruction.Op.GO && insn.op != Instruction.Op.RETURN) return false;
+                boolean changed = false;
+                for(int j=w.next(i); j>=0 && w.get(j).op != Instruction.Op.LABEL; j=w.next(j)){
+                    w.remove(j);
+                    changed = true;
+                }
+                return changed;
+            }
+        });
+        // Labels nothing jumps to
+        addRule(new Rule("dead-label"){
+            boolean apply(Window w, int i){
+                Instruction insn = w.get(i);
+                if(insn.op != Instruction.Op.LABEL || w.refs(insn.n) > 0) return false;
+                w.remove(i);
+                return true;
+            }
+        });
+    }
+
+    // Before: code is the morpho assembly code of a function body
+    // After:  code has been replaced by equivalent, hopefully shorter, code
+    public void optimize(ArrayList<Instruction> code){
+        boolean changed = true;
+        for(int pass=0; changed && pass<MAX_PASSES; pass++){
+            changed = false;
+            Window w = new Window(code, removed);
+            for(int i=0; i<code.size(); i++){
+                for(int r=0; r<table.length; r++){
+                    if(code.get(i) == null) break;
+                    w.rule = r;
+                    if(table[r].apply(w, i)){
+                        applied[r]++;
+                        changed = true;
+                    }
+                }
+            }
+            // Squeeze out the removed instructions
+            int live = 0;
+            for(int i=0; i<code.size(); i++){
+                if(code.get(i) != null) code.set(live++, code.get(i));
+            }
+            code.subList(live, code.size()).clear();
+        }
+    }
+
+    // After: the number of times each rule was applied and the number of
+    //        instructions it removed have been traced
+    public void report(Trace trace){
+        int total = 0;
+        for(int r=0; r<table.length; r++){
+            trace.line(String.format("%-14s applied %6d times, removed %6d instructions", table[r].name, applied[r], removed[r]));
+            total += removed[r];
+        }
+        trace.line(String.format("%-14s removed %6d instructions", "total", total));
+    }
+}
@@ -0,0 +1,25 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Where the Compiler writes a program, one function at a time in source
+ * order: a MasmWriter writes morpho assembly and a MexeWriter assembles a
+ * morpho executable directly. Nothing is left at the target unless the
+ * writer is closed.
+ */
+public interface ProgramWriter extends Closeable {
+
+    // After: the code of f has been written, with its labels numbered after
+    //        those of the functions written before it
+    void write(FunctionCode f) throws IOException;
+
+    // The number of labels of the functions written so far, which the labels
+    // of the next function are numbered after
+    int labelBase();
+
+    // After: the end of the program has been written and the output file is complete
+    void close() throws IOException;
+
+    // After: the output file has been discarded and the target is unchanged
+    void abort() throws IOException;
+}
@@ -0,0 +1,61 @@
+import java.util.ArrayList;
+
+/**
+ * Instruction selection for the morpho assembly code of a single function.
+ *
+ * The Compiler generates code from the plain operations only, with a (Push)
+ * before each operand that goes on the stack and a (Return) after the value
+ * returned. The morpho VM has fused variants of the common operations, that
+ * push the accumulator before doing what they do or return after it, and
+ * each one saves the VM a dispatch. Selection replaces every pair of
+ * adjacent instructions that has a fused variant by that variant. A pair
+ * with a label between its instructions is not adjacent, as the second can
+ * be jumped to on its own.
+ *
+ * Selection runs after the Peephole optimizer, whose rules only know the
+ * plain operations and may make new pairs adjacent.
+ */
+public final class Selector {
+
+    private Selector(){}
+
+    // Before: code is the morpho assembly code of a function body
+    // After:  every pair of adjacent instructions in code that has a fused
+    //         variant has been replaced by it, the rest of code is unchanged
+    public static void select(ArrayList<Instruction> code){
+        int live = 0;
+        for(int i=0; i<code.size(); i++){
+            Instruction insn = code.get(i);
+            Instruction fused = live == 0 ? null : fuse(code.get(live-1), insn);
+            if(fused != null){
+                code.set(live-1, fused);
+            } else {
+                code.set(live++, insn);
+            }
+        }
+        code.subList(live, code.size()).clear();
+    }
+
+    // Returns the one instruction that does a and then b, null if there is none
+    private static Instruction fuse(Instruction a, Instruction b){
+        if(a.op == Instruction.Op.PUSH){
+            switch(b.op){
+                case MAKEVAL: return Instruction.makeValP(b.s);
+                case FETCH:   return Instruction.fetchP(b.n);
+                case STORE:   return Instruction.storeP(b.n);
+                default:      return null;
+            }
+        }
+        if(b.op == Instruction.Op.RETURN){
+            switch(a.op){
+                case MAKEVAL: return Instruction.makeValR(a.s);
+                case FETCH:   return Instruction.fetchR(a.n);
+                case STORE:   return Instruction.storeR(a.n);
+                case CALL:    return Instruction.callR(a.s, a.n);
+                case NOT:     return Instruction.NOTR;
+                default:      return null;
+            }
+        }
+        return null;
+    }
+}
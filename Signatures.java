@@ -0,0 +1,133 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * The signatures of the functions of a program and the calls to them, read
+ * off the tokens of each function in one pass as it is read. A call to a
+ * function already defined is checked as it is read, and a call to one not
+ * defined yet is kept until the function is, so a function may be called
+ * before it is defined and only the calls ahead of their functions are held
+ * in memory. Calls to functions that are not defined in the program, such
+ * as those of the morpho runtime, are not checked.
+ *
+ * The tokens are read rather than the syntax trees so that functions taken
+ * from a FunctionCache, which are never parsed, are checked too.
+ */
+public final class Signatures {
+
+    // The calls to a function that has not been defined yet, three ints per
+    // call: the number of arguments, and the line and column of its name
+    private static final class Calls {
+        int[] calls = new int[12];
+        int size = 0;
+
+        void add(int args, int line, int column){
+            if(size == calls.length) calls = Arrays.copyOf(calls, 2*size);
+            calls[size++] = args;
+            calls[size++] = line;
+            calls[size++] = column;
+        }
+    }
+
+    // The number of arguments of each function defined, by symbol
+    private final IntMap numArgs = new IntMap();
+    // Functions defined twice, in source order
+    private final ArrayList<String> errors = new ArrayList<>();
+    // Calls with the wrong number of arguments, by position
+    private final TreeMap<Long, String> callErrors = new TreeMap<>();
+    // The calls to each function not defined yet, by symbol
+    private final IntMap pendingIndex = new IntMap();
+    private final ArrayList<Calls> pending = new ArrayList<>();
+    // The calls open at a token of the function being read, four ints per
+    // parenthesis: the symbol of the function called, or -1 if it is not
+    // the parenthesis of a call, the number of arguments so far, and the
+    // line and column of the name
+    private int[] open = new int[64];
+
+    // Before: tokens are the tokens of a function, as read by
+    //         TokenBuffer.scanFunction
+    // After:  the signature of the function has been added and its calls
+    //         checked, or kept until the functions they call are defined
+    public void add(TokenBuffer tokens){
+        if(tokens.kind(0) != Parser.NAME || tokens.kind(1) != '(') return;
+        int name = tokens.symbol(0);
+        int args = 0;
+        int i = 2;
+        for(; i < tokens.size() && tokens.kind(i) != ')'; i++){
+            if(tokens.kind(i) == Parser.NAME) args++;
+        }
+        if(numArgs.containsKey(name)){
+            errors.add("The function "+Symbols.name(name)+" is already defined. "+position(tokens.line(0), tokens.column(0)));
+        } else {
+            numArgs.put(name, args);
+            int index = pendingIndex.get(name);
+            if(index >= 0){
+                Calls calls = pending.get(index);
+                for(int c=0; c<calls.size; c+=3) check(name, args, calls.calls[c], calls.calls[c+1], calls.calls[c+2]);
+                pending.set(index, null);
+            }
+        }
+        int depth = 0;
+        for(; i < tokens.size(); i++){
+            int kind = tokens.kind(i);
+            if(kind == '('){
+                if(4*depth == open.length) open = Arrays.copyOf(open, 2*open.length);
+                int o = 4*depth++;
+                boolean call = tokens.kind(i-1) == Parser.NAME;
+                open[o] = call ? tokens.symbol(i-1) : -1;
+                open[o+1] = tokens.kind(i+1) == ')' ? 0 : 1;
+                open[o+2] = call ? tokens.line(i-1) : 0;
+                open[o+3] = call ? tokens.column(i-1) : 0;
+            } else if(kind == ')'){
+                if(depth == 0) continue;
+                int o = 4*--depth;
+                if(open[o] >= 0) addCall(open[o], open[o+1], open[o+2], open[o+3]);
+            } else if(kind == ',' && depth > 0){
+                open[4*(depth-1)+1]++;
+            }
+        }
+        // Calls left open by a syntax error count as they were read
+        while(depth > 0){
+            int o = 4*--depth;
+            if(open[o] >= 0) addCall(open[o], open[o+1], open[o+2], open[o+3]);
+        }
+    }
+
+    // After: the call with args arguments to the function symbol, whose
+    //        name is at line and column, has been checked if the function
+    //        is defined and kept until it is if not
+    private void addCall(int symbol, int args, int line, int column){
+        int expected = numArgs.get(symbol);
+        if(expected >= 0){
+            check(symbol, expected, args, line, column);
+            return;
+        }
+        int index = pendingIndex.get(symbol);
+        if(index < 0){
+            index = pending.size();
+            pending.add(new Calls());
+            pendingIndex.put(symbol, index);
+        }
+        pending.get(index).add(args, line, column);
+    }
+
+    private void check(int symbol, int expected, int args, int line, int column){
+        if(expected != args){
+            callErrors.put((long)line << 32 | column, "The function "+Symbols.name(symbol)+" takes "+expected+" arguments, not "+args+". "+position(line, column));
+        }
+    }
+
+    // Returns the errors in the program read: functions defined twice, then
+    // calls with the wrong number of arguments, each in source order
+    public List<String> check(){
+        ArrayList<String> result = new ArrayList<>(errors);
+        result.addAll(callErrors.values());
+        return result;
+    }
+
+    private static String position(int line, int column){
+        return "(line: "+(line+1)+", column: "+column+")";
+    }
+}
@@ -0,0 +1,117 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+
+/**
+ * Reads UTF-8 source files for a Lexer that is reused for file after file.
+ *
+ * Each thread keeps one SourceReader together with its Lexer, byte buffer
+ * and decoder, and open() resets them all onto the next file, so compiling
+ * a file in a batch or in the compile server allocates next to nothing
+ * before lexing starts. Bytes are decoded straight into the Lexer's buffer.
+ * The character map of the Lexer is a static table unpacked once when the
+ * class is loaded, so it is shared by all Lexers already.
+ */
+public final class SourceReader extends Reader {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final ThreadLocal<SourceReader> readers = new ThreadLocal<>();
+
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharBuffer pair = CharBuffer.allocate(2);
+    private final Lexer lexer = new Lexer(this);
+    private FileChannel channel;
+    private boolean inUse;
+    // The end of the file has been read, and all of it has been decoded
+    private boolean eof, done;
+    // The low surrogate of a pair that did not fit in the last read, or -1
+    private int spill;
+
+    private SourceReader(){}
+
+    // Before: file is the path of a source file
+    // After:  returns a reader positioned at the start of file, reusing this
+    //         thread's reader if it is not in use. It must be closed when
+    //         the file has been read.
+    public static SourceReader open(Path file) throws IOException{
+        SourceReader reader = readers.get();
+        if(reader == null || reader.inUse){
+            reader = new SourceReader();
+            if(readers.get() == null) readers.set(reader);
+        }
+        reader.channel = FileChannel.open(file);
+        reader.inUse = true;
+        reader.bytes.clear().limit(0);
+        reader.decoder.reset();
+        reader.eof = reader.done = false;
+        reader.spill = -1;
+        reader.lexer.yyreset(reader);
+        return reader;
+    }
+
+    // Returns the Lexer reading from this reader
+    public Lexer lexer(){
+        return lexer;
+    }
+
+    public int read(char[] cbuf, int off, int len) throws IOException{
+        if(len == 0) return 0;
+        int n = 0;
+        if(spill >= 0){
+            cbuf[off] = (char)spill;
+            spill = -1;
+            n = 1;
+        }
+        if(n < len && !done){
+            if(len-n == 1){
+                // A surrogate pair would not fit, decode into pair instead
+                pair.clear();
+                decode(pair);
+                pair.flip();
+                if(pair.hasRemaining()) cbuf[off+n++] = pair.get();
+                if(pair.hasRemaining()) spill = pair.get();
+            } else {
+                CharBuffer out = CharBuffer.wrap(cbuf, off+n, len-n);
+                decode(out);
+                n = out.position()-off;
+            }
+        }
+        return n == 0 && done ? -1 : n;
+    }
+
+    // Before: out has room for at least two characters
+    // After:  at least one character has been decoded into out, or all of
+    //         the input has been decoded
+    private void decode(CharBuffer out) throws IOException{
+        int start = out.position();
+        while(!done){
+            CoderResult result = decoder.decode(bytes, out, eof);
+            if(out.position() > start || result.isOverflow()) return;
+            if(eof){
+                decoder.flush(out);
+                done = true;
+                return;
+            }
+            bytes.compact();
+            eof = channel.read(bytes) < 0;
+            bytes.flip();
+        }
+    }
+
+    // After: the file is closed and this reader can be reused by its thread
+    public void close() throws IOException{
+        inUse = false;
+        if(channel != null) channel.close();
+        channel = null;
+    }
+}
@@ -0,0 +1,169 @@
+import java.nio.charset.Charset;
+
+/**
+ * The global symbol table: every name and operator of the programs compiled
+ * is interned here once and numbered densely from 0.
+ *
+ * The Lexers look symbols up by the characters or bytes of a token, so a
+ * String is only made the first time a symbol is seen, and every token of a
+ * symbol shares that String. The Parser keys its scopes by symbol number.
+ * Lookups do not lock, only adding a symbol does, so files and functions
+ * can be lexed and parsed concurrently. Symbols are only removed by
+ * clear(), which the CompileServer calls between requests once the table
+ * has grown past a bound, so a long running server does not hold the
+ * symbols of every program it has compiled.
+ */
+public final class Symbols {
+
+    // A symbol and its number
+    public static final class Symbol {
+        public final int id;
+        public final String name;
+
+        private Symbol(int id, String name){
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+    private static final Object lock = new Object();
+    // Open addressing hash table of the symbols, at most half full. Only
+    // written while holding lock, a full table is replaced by a larger one.
+    private static final int INITIAL_SIZE = 1 << 9;
+    private static volatile Symbol[] table = new Symbol[2*INITIAL_SIZE];
+    // names[id] is the name of symbol id
+    private static volatile String[] names = new String[INITIAL_SIZE];
+    private static int count = 0;
+
+    private Symbols(){}
+
+    private static int slot(int hash, int mask){
+        return (hash ^ hash >>> 16) * 0x9E3779B9 >>> 7 & mask;
+    }
+
+    // Returns the symbol of the text of length chars at off in text
+    public static Symbol intern(char[] text, int off, int length){
+        int hash = 0;
+        for(int i=0; i<length; i++) hash = 31*hash+text[off+i];
+        Symbol[] t = table;
+        int mask = t.length-1;
+        for(int i=slot(hash, mask); ; i=(i+1) & mask){
+            Symbol s = t[i];
+            if(s == null) break;
+            if(s.name.hashCode() == hash && s.name.length() == length && matches(s.name, text, off)) return s;
+        }
+        return add(new String(text, off, length));
+    }
+
+    // Before: the length bytes at off in text are ASCII
+    // After:  returns the symbol of those bytes
+    public static Symbol intern(byte[] text, int off, int length){
+        int hash = 0;
+        for(int i=0; i<length; i++) hash = 31*hash+text[off+i];
+        Symbol[] t = table;
+        int mask = t.length-1;
+        for(int i=slot(hash, mask); ; i=(i+1) & mask){
+            Symbol s = t[i];
+            if(s == null) break;
+            if(s.name.hashCode() == hash && s.name.length() == length && matches(s.name, text, off)) return s;
+        }
+        return add(new String(text, off, length, LATIN1));
+    }
+
+    // Returns the symbol of name
+    public static Symbol intern(String name){
+        Symbol[] t = table;
+        int mask = t.length-1;
+        for(int i=slot(name.hashCode(), mask); ; i=(i+1) & mask){
+            Symbol s = t[i];
+            if(s == null) break;
+            if(s.name.equals(name)) return s;
+        }
+        return add(name);
+    }
+
+    // Returns the name of symbol id
+    public static String name(int id){
+        String[] n = names;
+        if(id < n.length && n[id] != null) return n[id];
+        synchronized(lock){
+            return names[id];
+        }
+    }
+
+    // The number of symbols in the table
+    public static int size(){
+        synchronized(lock){
+            return count;
+        }
+    }
+
+    // Before: no token, syntax tree or other holder of a symbol number is
+    //         in use, and nothing is being lexed or parsed
+    // After:  the table is empty and back to its initial size, symbols are
+    //         numbered from 0 again
+    public static void clear(){
+        synchronized(lock){
+            table = new Symbol[2*INITIAL_SIZE];
+            names = new String[INITIAL_SIZE];
+            count = 0;
+        }
+    }
+
+    private static boolean matches(String name, char[] text, int off){
+        for(int i=0; i<name.length(); i++){
+            if(name.charAt(i) != text[off+i]) return false;
+        }
+        return true;
+    }
+
+    private static boolean matches(String name, byte[] text, int off){
+        for(int i=0; i<name.length(); i++){
+            if(name.charAt(i) != text[off+i]) return false;
+        }
+        return true;
+    }
+
+    // After: returns the symbol of name, added to the table if another
+    //        thread has not added it since it was looked up
+    private static Symbol add(String name){
+        synchronized(lock){
+            Symbol[] t = table;
+            int mask = t.length-1;
+            int i = slot(name.hashCode(), mask);
+            for(; t[i] != null; i=(i+1) & mask){
+                if(t[i].name.equals(name)) return t[i];
+            }
+            Symbol symbol = new Symbol(count++, name);
+            if(symbol.id == names.length){
+                String[] more = new String[2*names.length];
+                System.arraycopy(names, 0, more, 0, names.length);
+                more[symbol.id] = name;
+                names = more;
+            } else {
+                names[symbol.id] = name;
+            }
+            if(2*count > t.length){
+                // Lookups still in the old table miss the new symbol and
+                // find it here
+                Symbol[] larger = new Symbol[2*t.length];
+                mask = larger.length-1;
+                for(Symbol s : t){
+                    if(s != null) insert(larger, mask, s);
+                }
+                insert(larger, mask, symbol);
+                table = larger;
+            } else {
+                t[i] = symbol;
+            }
+            return symbol;
+        }
+    }
+
+    private static void insert(Symbol[] t, int mask, Symbol s){
+        int i = slot(s.name.hashCode(), mask);
+        while(t[i] != null) i = (i+1) & mask;
+        t[i] = s;
+    }
+}
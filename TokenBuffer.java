@@ -0,0 +1,143 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The tokens of one function, read ahead from a lexer together with their
+ * positions, so the function can be looked up in a FunctionCache before it
+ * is parsed, and parsed later by a Parser of its own. A Parser reading
+ * straight from a lexer also reads it a function at a time, into one
+ * TokenBuffer that it reuses.
+ *
+ * A token is its kind, the symbol of a name or operator, the start and
+ * length of the text of a literal or error in a buffer shared by all the
+ * tokens, and its line and column, each in an int array of its own. Reading
+ * and parsing tokens allocates nothing per token.
+ */
+public final class TokenBuffer {
+
+    private int[] kinds = new int[64];
+    private int[] symbols = new int[64];
+    private int[] starts = new int[64];
+    private int[] lengths = new int[64];
+    private int[] lines = new int[64];
+    private int[] columns = new int[64];
+    private int size = 0;
+    private final StringBuilder text = new StringBuilder();
+
+    // Before: lexer is positioned at the start of a function or at the end
+    //         of its input
+    // After:  returns the tokens up to and including the '}' that ends the
+    //         function, or up to and including the end of file if it is
+    //         reached first
+    public static TokenBuffer scanFunction(TokenSource lexer){
+        TokenBuffer buffer = new TokenBuffer();
+        buffer.scan(lexer);
+        return buffer;
+    }
+
+    // Before: lexer is positioned at the start of a function or at the end
+    //         of its input
+    // After:  the buffer holds the tokens of the function, as scanFunction
+    //         returns them, instead of the tokens it held
+    public void scan(TokenSource lexer){
+        size = 0;
+        text.setLength(0);
+        int depth = 0;
+        while(true){
+            int kind;
+            try{
+                kind = lexer.yylex();
+            } catch (IOException e){
+                throw new Error(e);
+            }
+            add(kind, lexer);
+            if(kind == Parser.EOF){
+                return;
+            } else if(kind == '{'){
+                depth++;
+            } else if(kind == '}' && --depth == 0){
+                return;
+            }
+        }
+    }
+
+    private void add(int kind, TokenSource lexer){
+        if(size == kinds.length){
+            kinds = Arrays.copyOf(kinds, 2*size);
+            symbols = Arrays.copyOf(symbols, 2*size);
+            starts = Arrays.copyOf(starts, 2*size);
+            lengths = Arrays.copyOf(lengths, 2*size);
+            lines = Arrays.copyOf(lines, 2*size);
+            columns = Arrays.copyOf(columns, 2*size);
+        }
+        kinds[size] = kind;
+        symbols[size] = -1;
+        starts[size] = text.length();
+        if(kind == Parser.NAME || kind == Parser.OPERATOR){
+            symbols[size] = lexer.symbol();
+        } else if(kind == Parser.LITERAL || kind == Parser.ERR){
+            lexer.appendText(text);
+        }
+        lengths[size] = text.length()-starts[size];
+        lines[size] = lexer.getLine();
+        columns[size] = lexer.getColumn();
+        size++;
+    }
+
+    // The number of tokens, including the end of file if it was reached
+    public int size(){
+        return size;
+    }
+
+    // Whether the buffer holds no function, only the end of the input
+    public boolean isEmpty(){
+        return size == 0 || (size == 1 && kinds[0] == Parser.EOF);
+    }
+
+    // Whether the last token is the end of the input
+    public boolean atEnd(){
+        return size > 0 && kinds[size-1] == Parser.EOF;
+    }
+
+    // The kind of token i, the end of file after the last token
+    public int kind(int i){
+        return i < size ? kinds[i] : Parser.EOF;
+    }
+
+    // The symbol of token i, if it is a name or an operator
+    public int symbol(int i){
+        return symbols[i];
+    }
+
+    // Returns the text of token i, if it is a literal or an error
+    public String text(int i){
+        return text.substring(starts[i], starts[i]+lengths[i]);
+    }
+
+    // Returns token i as it appears in the source, for messages
+    public String lexeme(int i){
+        switch(kind(i)){
+            case Parser.NAME:
+            case Parser.OPERATOR: return Symbols.name(symbols[i]);
+            case Parser.LITERAL:
+            case Parser.ERR:      return text(i);
+            case Parser.VAR:      return "var";
+            case Parser.RETURN:   return "return";
+            case Parser.IF:       return "if";
+            case Parser.ELIF:     return "elsif";
+            case Parser.ELSE:     return "else";
+            case Parser.WHILE:    return "while";
+            case Parser.EOF:      return "EOF";
+            default:              return "'"+(char)kinds[i]+"'";
+        }
+    }
+
+    // The line and column of token i, those of the last token after it
+    public int line(int i){
+        return size == 0 ? 0 : lines[Math.min(i, size-1)];
+    }
+
+    public int column(int i){
+        return size == 0 ? 0 : columns[Math.min(i, size-1)];
+    }
+}
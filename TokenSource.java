@@ -0,0 +1,25 @@
+import java.io.IOException;
+
+/**
+ * A source of tokens for a TokenBuffer: the Lexer, reading through a Reader,
+ * or a MappedLexer, scanning the bytes of a file. Nothing is allocated for a
+ * token, its kind is returned and the rest is asked for when needed.
+ */
+public interface TokenSource {
+
+    // Reads the next token and returns its kind: one of the token numbers
+    // of the Parser, the character of a delimiter, or Parser.EOF at the end
+    // of the input
+    int yylex() throws IOException;
+
+    // The symbol of the last token, if it is a name or an operator
+    int symbol();
+
+    // After: the text of the last token has been appended to text
+    void appendText(StringBuilder text);
+
+    // The line and column of the last token, counted from 0
+    int getLine();
+
+    int getColumn();
+}
@@ -0,0 +1,78 @@
+import java.io.PrintStream;
+
+/**
+ * The -v trace of a compilation.
+ *
+ * Lines are collected in a buffer and written to the sink a few kilobytes
+ * at a time, always ending at a line break, so the traces of files compiled
+ * at the same time into the same sink interleave only by whole lines.
+ * Indentation strings are built once per depth. Code that traces holds a
+ * Trace only when tracing, and checks for null before building a line, so
+ * nothing is done for the trace when it is off.
+ *
+ * A Trace must only be used by one thread at a time.
+ */
+public final class Trace {
+
+    private static final int FLUSH_SIZE = 1 << 13;
+    private static final String NL = System.lineSeparator();
+
+    private final PrintStream sink;
+    private final StringBuilder buffer = new StringBuilder(2*FLUSH_SIZE);
+    // indents[i] is the indentation for depth i
+    private String[] indents = {""};
+
+    public Trace(PrintStream sink){
+        this.sink = sink;
+    }
+
+    private String indent(int depth){
+        if(depth >= indents.length){
+            String[] more = new String[Math.max(depth+1, 2*indents.length)];
+            System.arraycopy(indents, 0, more, 0, indents.length);
+            for(int i=indents.length; i<more.length; i++) more[i] = more[i-1]+". ";
+            indents = more;
+        }
+        return indents[depth];
+    }
+
+    // After: s has been traced on a line of its own, indented to depth
+    public void line(int depth, String s){
+        buffer.append(indent(depth)).append(s).append(NL);
+        if(buffer.length() >= FLUSH_SIZE) flush();
+    }
+
+    public void line(String s){
+        line(0, s);
+    }
+
+    // After: the header of the morpho assembly of program <name>.mexe has
+    //        been traced as a MasmWriter writes it
+    public void masmHeader(String name){
+        MasmWriter.appendHeader(buffer, name);
+        if(buffer.length() >= FLUSH_SIZE) flush();
+    }
+
+    // After: the morpho assembly code of f, with its labels numbered after
+    //        labelBase, has been traced as a MasmWriter writes it
+    public void masm(FunctionCode f, int labelBase){
+        MasmWriter.appendFunction(buffer, f, labelBase);
+        if(buffer.length() >= FLUSH_SIZE) flush();
+    }
+
+    // After: the end of the morpho assembly of a program has been traced
+    public void masmFooter(){
+        MasmWriter.appendFooter(buffer);
+        if(buffer.length() >= FLUSH_SIZE) flush();
+    }
+
+    // After: everything traced so far has been written to the sink
+    public void flush(){
+        if(buffer.length() == 0) return;
+        synchronized(sink){
+            sink.append(buffer);
+            sink.flush();
+        }
+        buffer.setLength(0);
+    }
+}